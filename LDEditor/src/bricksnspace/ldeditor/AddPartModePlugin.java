@@ -21,6 +21,8 @@
 package bricksnspace.ldeditor;
 
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import bricksnspace.j3dgeom.Matrix3D;
@@ -51,8 +53,7 @@ public class AddPartModePlugin implements LDEditorPlugin {
 	ConnectionHandler connHandler = null;
 	LDrawGLDisplay display = null;
 	Undo<LDPrimitive> undo = null;
-	LDPrimitive currentPart = null;
-	LDRenderedPart currPartRendered = null;
+	MovingPart currentPart = null;
 	boolean movingPart = false; 
 	boolean explodeBlock;
 	private int colorIndex;
@@ -90,11 +91,10 @@ public class AddPartModePlugin implements LDEditorPlugin {
 		String ldrid = (String) params[0];
 		colorIndex = (Integer) params[1];
 		explodeBlock = (Boolean) params[2];
-		currentPart = LDPrimitive.newGlobalPart(ldrid,colorIndex,dh.getCurrentMatrix());
-		currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
+		currentPart = new MovingPart(LDPrimitive.newGlobalPart(ldrid,colorIndex,dh.getCurrentMatrix()));
 		display.disableHover();
 		movingPart = true;
-		display.addRenderedPart(currPartRendered.fastMove(editor.getCursor()));
+		display.addRenderedPart(currentPart.fastMove(editor.getCursor()));
 	}
 	
 	
@@ -112,7 +112,6 @@ public class AddPartModePlugin implements LDEditorPlugin {
 			display.getPart(connHandler.getTarget().getPartId()).unConnect();
 		}
 		currentPart = null;
-		currPartRendered = null;
 		display.enableHover();
 		movingPart = false;
 	}
@@ -126,21 +125,23 @@ public class AddPartModePlugin implements LDEditorPlugin {
 	public boolean doClick(int partId, Point3D eyeNear, Point3D eyeFar, PickMode mode) {
 		
 		if (movingPart && mode == PickMode.NONE) {
+			LDPrimitive placedPart;
 			if (LDEditor.isAutoconnect()) {
 				if (connHandler.isLocked()) {
 					display.getPart(connHandler.getTarget().getPartId()).unConnect();
 				}
-				currentPart = currentPart.moveTo(connHandler.getLastConn());
+				placedPart = currentPart.getPart().moveTo(connHandler.getLastConn());
 			}
 			else {
-				currentPart = currentPart.moveTo(editor.getCursor()); //prevCursor);
+				placedPart = currentPart.getPart().moveTo(editor.getCursor()); //prevCursor);
 			}
 			undo.startUndoRecord();
 			if (explodeBlock) {
-				display.delRenderedPart(currentPart.getId());
-				LDrawPart m = LDrawPart.getPart(currentPart.getLdrawId());
-				Matrix3D t = currentPart.getTransformation();
-				int color = currentPart.getColorIndex();
+				display.delRenderedPart(placedPart.getId());
+				LDrawPart m = LDrawPart.getPart(placedPart.getLdrawId());
+				Matrix3D t = placedPart.getTransformation();
+				int color = placedPart.getColorIndex();
+				List<LDPrimitive> parts = new ArrayList<LDPrimitive>();
 				for (LDPrimitive p: m.getPrimitives()) {
 					if (p.getType() != LDrawCommand.REFERENCE) {
 						// ignore non-reference elements
@@ -153,21 +154,21 @@ public class AddPartModePlugin implements LDEditorPlugin {
 						color = p.getColorIndex();
 					}
 					LDPrimitive np = LDPrimitive.newGlobalPart(p.getLdrawId(), color, p.getTransformation().transform(t));
-					editor.addPart(np);
+					parts.add(np);
 					undo.recordAdd(np);
 				}
+				editor.addParts(parts);
 			}
 			else {
-				editor.addPart(currentPart);
-				undo.recordAdd(currentPart);
+				editor.addPart(placedPart);
+				undo.recordAdd(placedPart);
 			}
 			undo.endUndoRecord();
 			if (LDEditor.isRepeatBrick()) {
-				start(currentPart.getLdrawId(),colorIndex,explodeBlock);
+				start(placedPart.getLdrawId(),colorIndex,explodeBlock);
 			}
 			else {
 				currentPart = null;
-				currPartRendered = null;
 				movingPart = false;
 			}
 		}
@@ -190,19 +191,18 @@ public class AddPartModePlugin implements LDEditorPlugin {
 					ldrp.unConnect();
 			}
 			//System.out.println(currentPartRendered.getConnections());
-			if (connHandler.getConnectionPoint(currentPart,dh.getCurrentMatrix(),editor.getCursor(), eyeNear)) {
-				// needs alignment
-				currentPart = currentPart.setTransform(connHandler.getAlignMatrix());
-				currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
+			if (connHandler.getConnectionPoint(currentPart.getPart(),dh.getCurrentMatrix(),editor.getCursor(), eyeNear)) {
+				// needs alignment, rendered part is rebuilt only if rotation changes
+				currentPart.setTransform(connHandler.getAlignMatrix());
 			}
 			if (connHandler.isLocked()) {
 				display.getPart(connHandler.getTarget().getPartId()).connected();
 			}
 
-			display.addRenderedPart(currPartRendered.fastMove(connHandler.getLastConn()));
+			display.addRenderedPart(currentPart.fastMove(connHandler.getLastConn()));
 		}
 		else {
-			display.addRenderedPart(currPartRendered.fastMove(editor.getCursor()));
+			display.addRenderedPart(currentPart.fastMove(editor.getCursor()));
 		}
 			
 	}
@@ -229,9 +229,8 @@ public class AddPartModePlugin implements LDEditorPlugin {
 				dh.rotPointerX(-LDEditor.getRotateStep());
 			}
 			else return false;
-			currentPart = currentPart.setTransform(dh.getCurrentMatrix());
-			currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
-			display.addRenderedPart(currPartRendered.fastMove(
+			currentPart.setTransform(dh.getCurrentMatrix());
+			display.addRenderedPart(currentPart.fastMove(
 					LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor()));
 			return true;
 		}
@@ -250,9 +249,8 @@ public class AddPartModePlugin implements LDEditorPlugin {
 		
 		colorIndex = color; 
 		if (movingPart) {
-			currentPart = currentPart.setColorIndex(colorIndex);
-			currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
-			display.addRenderedPart(currPartRendered.fastMove(
+			currentPart.setColorIndex(colorIndex);
+			display.addRenderedPart(currentPart.fastMove(
 					LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor()));
 		}
 	}
@@ -263,9 +261,8 @@ public class AddPartModePlugin implements LDEditorPlugin {
 	public boolean doMatrixChanged() {
 		
 		if (movingPart) {
-			currentPart = currentPart.setTransform(dh.getCurrentMatrix());
-			currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
-			display.addRenderedPart(currPartRendered.fastMove(
+			currentPart.setTransform(dh.getCurrentMatrix());
+			display.addRenderedPart(currentPart.fastMove(
 					LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor()));
 		}
 		return movingPart;
@@ -0,0 +1,272 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.awt.Color;
+import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import bricksnspace.j3dgeom.JSimpleGeom;
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.j3dgeom.Point3D;
+import bricksnspace.ldraw3d.DrawHelpers;
+import bricksnspace.ldraw3d.LDrawGLDisplay;
+import bricksnspace.ldraw3d.PickMode;
+import bricksnspace.ldraw3d.DrawHelpers.PointerMode;
+import bricksnspace.ldrawlib.ConnectionHandler;
+import bricksnspace.ldrawlib.ConnectionPoint;
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawCommand;
+import bricksnspace.simpleundo.Undo;
+
+
+/**
+ * Replicates parts along a vector (linear array) or around an axis (radial array)
+ * <p>
+ * If parts are selected when plugin starts, array is built from selection, then
+ * plugin stays active to build arrays from clicked part or window-selected parts.
+ *
+ */
+public class ArrayPartModePlugin implements LDEditorPlugin {
+
+
+
+
+	private LDEditor editor;
+	private DrawHelpers dh;
+	private Undo<LDPrimitive> undo;
+	private boolean inArray = false;
+
+	// array parameters
+	private int copies = 0;
+	private Point3D step = null;
+	private ConnectionPoint axis = null;
+	private float angle = 0;
+
+
+
+	public ArrayPartModePlugin(LDEditor me, DrawHelpers dhelp, ConnectionHandler ch,
+			Undo<LDPrimitive>u, LDrawGLDisplay gld) {
+		if (me == null || dhelp == null || ch == null || gld == null || u == null)
+			throw new IllegalArgumentException("[ArrayPartModePlugin] All parameters must be not null.");
+		editor = me;
+		dh = dhelp;
+		undo = u;
+	}
+
+
+
+
+
+	/**
+	 * Requires two parameters for a linear array:
+	 *  - number of copies (Integer)
+	 *  - vector between two copies (Point3D)
+	 * or three parameters for a radial array:
+	 *  - number of copies (Integer)
+	 *  - rotation axis (ConnectionPoint, from P1 to P2)
+	 *  - angle between two copies in degree (Float)
+	 */
+	@Override
+	public void start(Object... params) {
+
+		// parameters check
+		if (params.length != 2 && params.length != 3)
+			throw new IllegalArgumentException("[ArrayPartModePlugin.start] Wrong parameter number, must be 2 or 3.");
+		if (!(params[0] instanceof Integer) || (Integer) params[0] < 1)
+			throw new IllegalArgumentException("[ArrayPartModePlugin.start] Param[0] must be Integer greater than 0.");
+		copies = (Integer) params[0];
+		if (params.length == 2) {
+			if (!(params[1] instanceof Point3D))
+				throw new IllegalArgumentException("[ArrayPartModePlugin.start] Param[1] must be Point3D.");
+			step = (Point3D) params[1];
+			axis = null;
+		}
+		else {
+			if (!(params[1] instanceof ConnectionPoint))
+				throw new IllegalArgumentException("[ArrayPartModePlugin.start] Param[1] must be ConnectionPoint.");
+			if (!(params[2] instanceof Float))
+				throw new IllegalArgumentException("[ArrayPartModePlugin.start] Param[2] must be Float.");
+			axis = (ConnectionPoint) params[1];
+			angle = (Float) params[2];
+			step = null;
+		}
+		// two modes: if parts are already selected, build array and enter array mode
+		if (editor.getSelected().size() > 0) {
+			List<LDPrimitive> parts = new ArrayList<LDPrimitive>(editor.getSelected().size());
+			for (int id : editor.getSelected()) {
+				parts.add(editor.getPart(id));
+			}
+			editor.unselectAll();
+			buildArray(parts);
+		}
+		dh.setPointerMode(PointerMode.STUD,Color.CYAN);
+		inArray = true;
+	}
+
+
+
+	/**
+	 * Transformation for copy number i
+	 */
+	private Matrix3D getCopyMatrix(int i) {
+
+		if (axis != null) {
+			return new Matrix3D(-axis.getP1().x, -axis.getP1().y, -axis.getP1().z)
+				.transform(JSimpleGeom.axisRotMatrix(axis.getP1(), axis.getP2(), angle*i))
+				.moveTo(axis.getP1());
+		}
+		return new Matrix3D().moveTo(step.x*i, step.y*i, step.z*i);
+	}
+
+
+
+	/**
+	 * Computes all copies in a single pass, then adds them as a single batch
+	 * and a single undo record
+	 * @param parts parts to replicate
+	 */
+	private void buildArray(Collection<LDPrimitive> parts) {
+
+		List<LDPrimitive> newParts = new ArrayList<LDPrimitive>(parts.size()*copies);
+		for (int i=1;i<=copies;i++) {
+			Matrix3D t = getCopyMatrix(i);
+			for (LDPrimitive p: parts) {
+				if (p.getType() != LDrawCommand.REFERENCE) {
+					// ignore non-reference elements
+					continue;
+				}
+				newParts.add(LDPrimitive.newGlobalPart(p.getLdrawId(), p.getColorIndex(),
+						p.getTransformation().transform(t)));
+			}
+		}
+		if (newParts.size() == 0)
+			return;
+		undo.startUndoRecord();
+		for (LDPrimitive p: newParts) {
+			undo.recordAdd(p);
+		}
+		undo.endUndoRecord();
+		editor.addParts(newParts);
+	}
+
+
+
+	@Override
+	public void reset() {
+
+		dh.resetPointer();
+		inArray = false;
+	}
+
+
+
+	@Override
+	public boolean doClick(int partId, Point3D eyenear, Point3D eyeFar, PickMode mode) {
+
+		if (partId != 0 && mode == PickMode.NONE) {
+			List<LDPrimitive> parts = new ArrayList<LDPrimitive>(1);
+			parts.add(editor.getPart(partId));
+			buildArray(parts);
+		}
+		return inArray;
+	}
+
+
+
+	@Override
+	public void doMove(int partId, Point3D eyeNear, Point3D eyeFar) {
+		/* do nothing */
+	}
+
+
+
+	@Override
+	public boolean doKeyPress(KeyEvent e) {
+		return false;
+	}
+
+
+
+
+
+	@Override
+	public void doWindowSelected(Set<Integer> selected) {
+
+		if (selected.size() > 0) {
+			List<LDPrimitive> parts = new ArrayList<LDPrimitive>(selected.size());
+			for (int id : selected) {
+				parts.add(editor.getPart(id));
+			}
+			editor.unselectAll();
+			buildArray(parts);
+		}
+	}
+
+
+
+
+
+	@Override
+	public void doColorchanged(int colorIndex) { /* do nothing */ }
+
+
+
+
+
+	@Override
+	public boolean doMatrixChanged() {
+
+		return false;
+	}
+
+
+
+
+
+	@Override
+	public void doStepChanged(int step) {
+		/* do nothing */
+	}
+
+
+
+
+
+	@Override
+	public boolean needSelection() {
+
+		return false;
+	}
+
+
+
+
+
+	@Override
+	public void doDragParts(int partId) {
+		/* do nothing */
+	}
+
+}
@@ -0,0 +1,284 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.j3dgeom.Point3D;
+import bricksnspace.ldrawlib.ConnectionPoint;
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawCommand;
+import bricksnspace.ldrawlib.LDrawPart;
+
+
+/**
+ * Computes building steps from model geometry
+ * <p>
+ * Parts are taken bottom-up (LDraw -Y is up). Every step starts from the
+ * lowest part not yet placed, then takes parts connected to step parts,
+ * then nearest parts at about the same height. Submodels get a step alone.
+ * <p>
+ * Model data is copied when builder is created, on event thread, so
+ * {@link #compute()} can run in background.
+ *
+ */
+public class AutoStepBuilder {
+
+	// two connection points closer than this are connected, in LDU
+	private static final float CONN_QUANT = 2;
+	// locality search cell, in LDU
+	private static final float CELL = 80;
+	// parts in same step must be within a brick height
+	private static final float HEIGHT_BAND = 24;
+
+	private final int partsPerStep;
+	// drawable parts
+	private final int count;
+	private final int[] ids;
+	private final float[] pos;
+	private final boolean[] submodel;
+	// connection graph
+	private final List<List<Integer>> linked;
+	// non drawable elements, placed in first step
+	private final List<Integer> others = new ArrayList<Integer>();
+
+
+
+	/**
+	 * Copies model data needed to compute steps
+	 * @param parts model parts, in current order
+	 * @param connections all connection points of model
+	 * @param partsPerStep max parts in a step
+	 */
+	public AutoStepBuilder(Collection<LDPrimitive> parts, Collection<ConnectionPoint> connections, int partsPerStep) {
+
+		if (parts == null || connections == null)
+			throw new IllegalArgumentException("[AutoStepBuilder] Parts and connections must be not null.");
+		if (partsPerStep < 1)
+			throw new IllegalArgumentException("[AutoStepBuilder] Parts per step must be greater than 0.");
+		this.partsPerStep = partsPerStep;
+		List<LDPrimitive> drawable = new ArrayList<LDPrimitive>(parts.size());
+		for (LDPrimitive p: parts) {
+			if (p.isDrawable()) {
+				drawable.add(p);
+			}
+			else {
+				others.add(p.getId());
+			}
+		}
+		count = drawable.size();
+		ids = new int[count];
+		pos = new float[count*3];
+		submodel = new boolean[count];
+		Map<Integer,Integer> index = new HashMap<Integer, Integer>();
+		for (int i=0;i<count;i++) {
+			LDPrimitive p = drawable.get(i);
+			ids[i] = p.getId();
+			index.put(ids[i], i);
+			if (p.getType() == LDrawCommand.REFERENCE) {
+				Matrix3D m = p.getTransformation();
+				pos[i*3] = m.getX();
+				pos[i*3+1] = m.getY();
+				pos[i*3+2] = m.getZ();
+				submodel[i] = LDrawPart.existsCustomPart(p.getLdrawId());
+			}
+			else {
+				// lines and polygons, use first point
+				float[] pt = p.getPointsFV();
+				pos[i*3] = pt[0];
+				pos[i*3+1] = pt[1];
+				pos[i*3+2] = pt[2];
+			}
+		}
+		// parts with coincident connection points are connected
+		linked = new ArrayList<List<Integer>>(count);
+		for (int i=0;i<count;i++) {
+			linked.add(new ArrayList<Integer>(4));
+		}
+		Map<Long,List<Integer>> grid = new HashMap<Long, List<Integer>>();
+		for (ConnectionPoint cp: connections) {
+			Integer i = index.get(cp.getPartId());
+			if (i == null)
+				continue;
+			Point3D p = cp.getP1();
+			long key = cellKey(Math.round(p.x/CONN_QUANT), Math.round(p.y/CONN_QUANT), Math.round(p.z/CONN_QUANT));
+			List<Integer> cell = grid.get(key);
+			if (cell == null) {
+				cell = new ArrayList<Integer>(2);
+				grid.put(key, cell);
+			}
+			for (int j: cell) {
+				if (j != i && !linked.get(i).contains(j)) {
+					linked.get(i).add(j);
+					linked.get(j).add(i);
+				}
+			}
+			cell.add(i);
+		}
+	}
+
+
+
+	private static long cellKey(long ix, long iy, long iz) {
+
+		return ((ix & 0x1fffff) << 42) | ((iy & 0x1fffff) << 21) | (iz & 0x1fffff);
+	}
+
+
+
+	/**
+	 * Computes steps
+	 * @return list of steps, every step is a list of part ids, in step order
+	 */
+	public List<List<Integer>> compute() {
+
+		List<List<Integer>> steps = new ArrayList<List<Integer>>();
+		// bottom-up order, higher Y is lower
+		Integer[] order = new Integer[count];
+		for (int i=0;i<count;i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Float.compare(pos[b*3+1], pos[a*3+1]);
+			}
+		});
+		// locality index of parts to place
+		Map<Long,List<Integer>> grid = new HashMap<Long, List<Integer>>();
+		for (int i=0;i<count;i++) {
+			if (submodel[i])
+				continue;
+			long key = cellKey(cellOf(pos[i*3]), cellOf(pos[i*3+1]), cellOf(pos[i*3+2]));
+			List<Integer> cell = grid.get(key);
+			if (cell == null) {
+				cell = new ArrayList<Integer>();
+				grid.put(key, cell);
+			}
+			cell.add(i);
+		}
+		boolean[] placed = new boolean[count];
+		List<Integer> first = new ArrayList<Integer>(others);
+		for (int o=0;o<count;o++) {
+			int start = order[o];
+			if (placed[start])
+				continue;
+			placed[start] = true;
+			List<Integer> step = new ArrayList<Integer>(partsPerStep);
+			step.add(start);
+			if (!submodel[start]) {
+				while (step.size() < partsPerStep) {
+					int next = nextConnected(step, placed);
+					if (next < 0) {
+						next = nextNear(step, placed, grid);
+					}
+					if (next < 0)
+						break;
+					placed[next] = true;
+					step.add(next);
+				}
+			}
+			List<Integer> stepIds = new ArrayList<Integer>(step.size());
+			for (int i: step) {
+				stepIds.add(ids[i]);
+			}
+			steps.add(stepIds);
+		}
+		if (steps.size() == 0) {
+			steps.add(first);
+		}
+		else {
+			steps.get(0).addAll(0, first);
+		}
+		return steps;
+	}
+
+
+
+	private static long cellOf(float c) {
+
+		return (long) Math.floor(c/CELL);
+	}
+
+
+
+	/**
+	 * Lowest part connected to step parts, in height band
+	 */
+	private int nextConnected(List<Integer> step, boolean[] placed) {
+
+		float y = pos[step.get(0)*3+1];
+		int best = -1;
+		for (int i: step) {
+			for (int j: linked.get(i)) {
+				if (placed[j] || submodel[j] || Math.abs(pos[j*3+1]-y) > HEIGHT_BAND)
+					continue;
+				if (best < 0 || pos[j*3+1] > pos[best*3+1]) {
+					best = j;
+				}
+			}
+		}
+		return best;
+	}
+
+
+
+	/**
+	 * Nearest part to step first part, in height band and neighbour cells
+	 */
+	private int nextNear(List<Integer> step, boolean[] placed, Map<Long,List<Integer>> grid) {
+
+		int s = step.get(0);
+		float x = pos[s*3], y = pos[s*3+1], z = pos[s*3+2];
+		long cx = cellOf(x), cy = cellOf(y), cz = cellOf(z);
+		int best = -1;
+		float bestDist = 0;
+		for (long ix=cx-1;ix<=cx+1;ix++) {
+			for (long iy=cy-1;iy<=cy+1;iy++) {
+				for (long iz=cz-1;iz<=cz+1;iz++) {
+					List<Integer> cell = grid.get(cellKey(ix, iy, iz));
+					if (cell == null)
+						continue;
+					for (int j: cell) {
+						if (placed[j] || Math.abs(pos[j*3+1]-y) > HEIGHT_BAND)
+							continue;
+						float dx = pos[j*3]-x, dy = pos[j*3+1]-y, dz = pos[j*3+2]-z;
+						float d = dx*dx+dy*dy+dz*dz;
+						if (best < 0 || d < bestDist) {
+							best = j;
+							bestDist = d;
+						}
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+}
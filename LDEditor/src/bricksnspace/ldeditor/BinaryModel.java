@@ -0,0 +1,525 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawCommand;
+import bricksnspace.ldrawlib.LDrawPart;
+import bricksnspace.ldrawlib.LDrawPartType;
+
+
+/**
+ * Compact binary model format, with memory mapped loading
+ * <p>
+ * File layout, all values big endian:
+ * <pre>
+ * int magic "LDEB", int version
+ * int string count, strings as int length + UTF-8 bytes
+ * int section count, for every section:
+ *   int name string, int description string, int part name string,
+ *   int author string, int license string, int part type string, 
+ *   int record count
+ *   records, 64 bytes each:
+ *     int string (part id, META text or empty for geometry), int color, 
+ *     int step, int kind, 12 floats:
+ *       part: matrix in LDraw order x y z a b c d e f g h i
+ *       line, triangle, quad, auxiliary line: point coordinates x y z, 
+ *       2, 3, 4 and 4 points, unused values are 0
+ * </pre>
+ * First section is main model, others are its submodels.
+ *
+ */
+public final class BinaryModel {
+
+	private static final int MAGIC = 0x4c444542;
+	private static final int VERSION = 2;
+	static final int KIND_PART = 0;
+	static final int KIND_META = 1;
+	// geometry
+	static final int KIND_LINE = 2;
+	static final int KIND_TRIANGLE = 3;
+	static final int KIND_QUAD = 4;
+	static final int KIND_AUXLINE = 5;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+	private BinaryModel() { /* static only */ }
+
+
+
+	/**
+	 * A model element, independent from part library
+	 * <p>
+	 * Used as intermediate form by loaders, so parsing can be done 
+	 * outside event thread and models are built in a single pass
+	 */
+	static class Record {
+
+		final int kind;
+		// part id or META text, null or empty for geometry
+		final String text;
+		final int color;
+		final int step;
+		// part matrix in LDraw order x y z a b c d e f g h i, 
+		// point coordinates for geometry, null for META
+		final float[] values;
+
+		Record(int kind, String text, int color, int step, float[] values) {
+			this.kind = kind;
+			this.text = text;
+			this.color = color;
+			this.step = step;
+			this.values = values;
+		}
+	}
+
+
+
+	/**
+	 * A model or submodel as a list of records
+	 * <p>
+	 * Header fields are null when not known, part type is an 
+	 * {@link LDrawPartType} name.
+	 */
+	static class Section {
+
+		final String name;
+		final String description;
+		final String partName;
+		final String author;
+		final String license;
+		final String partType;
+		final List<Record> records;
+
+		Section(String name, String description, String partName, String author, 
+				String license, String partType, List<Record> records) {
+			this.name = name;
+			this.description = description;
+			this.partName = partName;
+			this.author = author;
+			this.license = license;
+			this.partType = partType;
+			this.records = records;
+		}
+	}
+
+
+
+	/**
+	 * Saves model and all submodels it uses
+	 * @param model main model
+	 * @param f file to write
+	 * @throws IOException on write errors
+	 */
+	public static void save(LDrawPart model, File f) throws IOException {
+
+		if (model == null || f == null)
+			throw new IllegalArgumentException("[BinaryModel.save] Model and file must be not null.");
+		// model and submodels, in reference order
+		List<LDrawPart> parts = new ArrayList<LDrawPart>();
+		Set<String> seen = new HashSet<String>();
+		parts.add(model);
+		seen.add(model.getLdrawId());
+		for (int i=0;i<parts.size();i++) {
+			for (LDPrimitive p: parts.get(i).getPrimitives()) {
+				if (p.getType() == LDrawCommand.REFERENCE && LDrawPart.existsCustomPart(p.getLdrawId())
+						&& seen.add(p.getLdrawId())) {
+					parts.add(LDrawPart.getPart(p.getLdrawId()));
+				}
+			}
+		}
+		Map<String,Integer> strings = new LinkedHashMap<String, Integer>();
+		List<Section> sections = new ArrayList<Section>(parts.size());
+		for (LDrawPart m: parts) {
+			Section s = toSection(m);
+			addString(strings, s.name);
+			addString(strings, s.description);
+			addString(strings, s.partName);
+			addString(strings, s.author);
+			addString(strings, s.license);
+			addString(strings, s.partType);
+			for (Record r: s.records) {
+				addString(strings, r.text);
+			}
+			sections.add(s);
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(strings.size());
+			for (String s: strings.keySet()) {
+				byte[] b = s.getBytes(UTF8);
+				out.writeInt(b.length);
+				out.write(b);
+			}
+			out.writeInt(sections.size());
+			for (Section s: sections) {
+				out.writeInt(strings.get(s.name));
+				out.writeInt(strings.get(s.description));
+				out.writeInt(strings.get(s.partName));
+				out.writeInt(strings.get(s.author));
+				out.writeInt(strings.get(s.license));
+				out.writeInt(strings.get(s.partType));
+				out.writeInt(s.records.size());
+				for (Record r: s.records) {
+					out.writeInt(strings.get(r.text));
+					out.writeInt(r.color);
+					out.writeInt(r.step);
+					out.writeInt(r.kind);
+					for (int i=0;i<12;i++) {
+						out.writeFloat(r.values == null ? 0 : r.values[i]);
+					}
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+
+
+	private static void addString(Map<String,Integer> strings, String s) {
+
+		if (!strings.containsKey(s)) {
+			strings.put(s, strings.size());
+		}
+	}
+
+
+
+	/**
+	 * Model elements in step order
+	 */
+	private static Section toSection(LDrawPart m) {
+
+		List<Record> records = new ArrayList<Record>();
+		for (int s=0;s<=m.getNumSteps();s++) {
+			for (LDPrimitive p: m.getPartsInStep(s)) {
+				LDrawCommand t = p.getType();
+				if (t == LDrawCommand.REFERENCE) {
+					float[] v = new float[12];
+					ContentHash.matrixValues(p.getTransformation(), v, 0);
+					records.add(new Record(KIND_PART, p.getLdrawId(), p.getColorIndex(), s, v));
+				}
+				else if (t == LDrawCommand.META_UNKNOWN) {
+					records.add(new Record(KIND_META, p.getLdrawId(), 0, s, null));
+				}
+				else if (t == LDrawCommand.LINE || t == LDrawCommand.TRIANGLE 
+						|| t == LDrawCommand.QUAD || t == LDrawCommand.AUXLINE) {
+					float[] v = new float[12];
+					float[] pt = p.getPointsFV();
+					System.arraycopy(pt, 0, v, 0, Math.min(12, pt.length));
+					records.add(new Record(geometryKind(t), "", p.getColorIndex(), s, v));
+				}
+			}
+		}
+		return new Section(m.getLdrawId(), nullToEmpty(m.getDescription()), nullToEmpty(m.getPartName()), 
+				nullToEmpty(m.getAuthor()), nullToEmpty(m.getLicense()), 
+				m.getPartType() == null ? "" : m.getPartType().name(), records);
+	}
+
+
+
+	private static int geometryKind(LDrawCommand t) {
+
+		if (t == LDrawCommand.LINE)
+			return KIND_LINE;
+		if (t == LDrawCommand.TRIANGLE)
+			return KIND_TRIANGLE;
+		if (t == LDrawCommand.QUAD)
+			return KIND_QUAD;
+		return KIND_AUXLINE;
+	}
+
+
+
+	private static String nullToEmpty(String s) {
+
+		return s == null ? "" : s;
+	}
+
+
+
+	/**
+	 * Loads a binary model, submodels are registered as custom parts
+	 * <p>
+	 * A model or submodel with same name already registered is used as it is, 
+	 * and not replaced by content in file
+	 * @param f file to read
+	 * @return main model
+	 * @throws IOException on read errors or if file isn't a valid binary model
+	 */
+	public static LDrawPart load(File f) throws IOException {
+
+		if (f == null)
+			throw new IllegalArgumentException("[BinaryModel.load] File must be not null.");
+		return build(read(f));
+	}
+
+
+
+	/**
+	 * Reads file content with a memory map
+	 */
+	private static List<Section> read(File f) throws IOException {
+
+		FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			if (buf.getInt() != MAGIC)
+				throw new IOException("[BinaryModel.load] Not a binary model: "+f);
+			int version = buf.getInt();
+			if (version != VERSION)
+				throw new IOException("[BinaryModel.load] Unsupported version "+version+": "+f);
+			String[] strings = new String[checkCount(buf.getInt(), buf, 4)];
+			for (int i=0;i<strings.length;i++) {
+				byte[] b = new byte[checkCount(buf.getInt(), buf, 1)];
+				buf.get(b);
+				strings[i] = new String(b, UTF8);
+			}
+			int count = checkCount(buf.getInt(), buf, 28);
+			List<Section> sections = new ArrayList<Section>(count);
+			for (int s=0;s<count;s++) {
+				String name = getString(strings, buf.getInt());
+				String description = getString(strings, buf.getInt());
+				String partName = getString(strings, buf.getInt());
+				String author = getString(strings, buf.getInt());
+				String license = getString(strings, buf.getInt());
+				String partType = getString(strings, buf.getInt());
+				int n = checkCount(buf.getInt(), buf, 64);
+				List<Record> records = new ArrayList<Record>(n);
+				for (int i=0;i<n;i++) {
+					String text = getString(strings, buf.getInt());
+					int color = buf.getInt();
+					int step = buf.getInt();
+					int kind = buf.getInt();
+					if (kind < KIND_PART || kind > KIND_AUXLINE)
+						throw new IOException("[BinaryModel.load] Corrupted binary model");
+					float[] v = new float[12];
+					for (int j=0;j<12;j++) {
+						v[j] = buf.getFloat();
+					}
+					if (kind == KIND_META) {
+						records.add(new Record(kind, text, color, step, null));
+					}
+					else {
+						records.add(new Record(kind, kind == KIND_PART ? text : null, color, step, v));
+					}
+				}
+				sections.add(new Section(name, description, partName, author, license, partType, records));
+			}
+			if (sections.size() == 0)
+				throw new IOException("[BinaryModel.load] Empty binary model: "+f);
+			return sections;
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("[BinaryModel.load] Truncated binary model: "+f, e);
+		}
+		finally {
+			fc.close();
+		}
+	}
+
+
+
+	/**
+	 * Checks a count against remaining data, for corrupted files
+	 */
+	private static int checkCount(int count, MappedByteBuffer buf, int minSize) throws IOException {
+
+		if (count < 0 || (long) count * minSize > buf.remaining())
+			throw new IOException("[BinaryModel.load] Corrupted binary model");
+		return count;
+	}
+
+
+
+	private static String getString(String[] strings, int index) throws IOException {
+
+		if (index < 0 || index >= strings.length)
+			throw new IOException("[BinaryModel.load] Corrupted binary model");
+		return strings[index];
+	}
+
+
+
+	/**
+	 * Builds models from sections, in event thread or before model is
+	 * shown. Every submodel is built before models that use it, so
+	 * references are resolved when main model is rendered.
+	 * @param sections main model first, then submodels
+	 * @return main model
+	 */
+	static LDrawPart build(List<Section> sections) {
+
+		// LDraw names are case insensitive, first section with a name wins
+		Map<String,Section> byName = new HashMap<String, Section>();
+		for (Section s: sections) {
+			String key = s.name.toLowerCase();
+			if (!byName.containsKey(key)) {
+				byName.put(key, s);
+			}
+		}
+		Map<String,LDrawPart> built = new HashMap<String, LDrawPart>();
+		for (Section s: sections) {
+			buildTree(s, byName, built, new HashSet<String>());
+		}
+		return built.get(sections.get(0).name.toLowerCase());
+	}
+
+
+
+	/**
+	 * Builds a section after all sections it references
+	 * @param building sections in current reference chain, to stop loops
+	 */
+	private static void buildTree(Section s, Map<String,Section> byName, Map<String,LDrawPart> built,
+			Set<String> building) {
+
+		String key = s.name.toLowerCase();
+		if (built.containsKey(key) || !building.add(key))
+			return;
+		for (Record r: s.records) {
+			if (r.kind != KIND_PART)
+				continue;
+			Section sub = byName.get(r.text.toLowerCase());
+			if (sub != null) {
+				buildTree(sub, byName, built, building);
+			}
+		}
+		building.remove(key);
+		built.put(key, buildModel(s, byName));
+	}
+
+
+
+	private static LDrawPart buildModel(Section s, Map<String,Section> byName) {
+
+		// a model or submodel already loaded with same name is kept as it is
+		if (LDrawPart.existsCustomPart(s.name))
+			return LDrawPart.getPart(s.name);
+		LDrawPart model = LDrawPart.newCustomPart(s.name);
+		model.setDescription(s.description);
+		if (s.partName != null && s.partName.length() > 0) {
+			model.setPartName(s.partName);
+		}
+		if (s.author != null && s.author.length() > 0) {
+			model.setAuthor(s.author);
+		}
+		if (s.license != null && s.license.length() > 0) {
+			model.setLicense(s.license);
+		}
+		if (s.partType != null && s.partType.length() > 0) {
+			try {
+				model.setPartType(LDrawPartType.valueOf(s.partType));
+			}
+			catch (IllegalArgumentException e) {
+				// type unknown to this library version, keeps default
+			}
+		}
+		List<LDPrimitive> prims = new ArrayList<LDPrimitive>(s.records.size());
+		for (Record r: s.records) {
+			LDPrimitive p;
+			if (r.kind == KIND_PART) {
+				// submodels are registered with their section name
+				Section sub = byName.get(r.text.toLowerCase());
+				p = LDPrimitive.newGlobalPart(sub != null ? sub.name : r.text, r.color, toMatrix(r.values));
+			}
+			else if (r.kind == KIND_META) {
+				p = LDPrimitive.newMetaUnk(r.text);
+			}
+			else {
+				p = toGeometry(r);
+			}
+			model.addPart(p);
+			prims.add(p);
+		}
+		// steps, records are in step order
+		model.goFirstStep();
+		int step = 0;
+		for (int i=0;i<prims.size();i++) {
+			while (step < s.records.get(i).step) {
+				model.nextStep();
+				step++;
+			}
+			model.moveToCurrStep(prims.get(i));
+		}
+		model.goFirstStep();
+		return model;
+	}
+
+
+
+	/**
+	 * Line, auxiliary line, triangle or quad from point coordinates
+	 */
+	private static LDPrimitive toGeometry(Record r) {
+
+		float[] v = r.values;
+		switch (r.kind) {
+		case KIND_LINE:
+			return LDPrimitive.newLine(r.color, v[0], v[1], v[2], v[3], v[4], v[5]);
+		case KIND_TRIANGLE:
+			return LDPrimitive.newTriangle(r.color, v[0], v[1], v[2], v[3], v[4], v[5], v[6], v[7], v[8]);
+		case KIND_QUAD:
+			return LDPrimitive.newQuad(r.color, v[0], v[1], v[2], v[3], v[4], v[5], 
+					v[6], v[7], v[8], v[9], v[10], v[11]);
+		default:
+			return LDPrimitive.newAuxLine(r.color, v[0], v[1], v[2], v[3], v[4], v[5], 
+					v[6], v[7], v[8], v[9], v[10], v[11]);
+		}
+	}
+
+
+
+	/**
+	 * Matrix from values in LDraw order x y z a b c d e f g h i
+	 * <p>
+	 * Uses Matrix3D constructor with rotation a..i first and offset x y z
+	 * last, the inverse of getters used by {@link ContentHash#matrixValues}
+	 */
+	private static Matrix3D toMatrix(float[] v) {
+
+		return new Matrix3D(v[3], v[4], v[5], v[6], v[7], v[8], v[9], v[10], v[11], v[0], v[1], v[2]);
+	}
+
+}
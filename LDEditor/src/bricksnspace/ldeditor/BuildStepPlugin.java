@@ -24,25 +24,35 @@ import java.awt.Component;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 
 import bricksnspace.j3dgeom.Point3D;
 import bricksnspace.ldraw3d.DrawHelpers;
+import bricksnspace.ldraw3d.LDRenderedPart;
 import bricksnspace.ldraw3d.LDrawGLDisplay;
 import bricksnspace.ldraw3d.PickMode;
 import bricksnspace.ldrawlib.ConnectionHandler;
 import bricksnspace.ldrawlib.LDPrimitive;
-import bricksnspace.ldrawlib.LDrawPart;
 import bricksnspace.simpleundo.Undo;
 
 public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
@@ -55,10 +65,36 @@ public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
 	//private DrawHelpers dh;
 	//private Undo<LDPrimitive> undo;
 	private LDrawGLDisplay display;
+	private ConnectionHandler connHandler;
 	
 	// plugin status
-	//private boolean stepEditing = false;
+	private boolean stepEditing = false;
 	private int currentStep = 0;
+	// parts in a step for auto-step
+	private static final int PARTS_PER_STEP = 3;
+	// steps prepared ahead of current one while playing
+	private static final int PREFETCH_STEPS = 4;
+	// time for every step while playing, in ms
+	private static int playInterval = 500;
+	// step preview
+	private static final int THUMB_SIZE = 128;
+	private static final int THUMB_CACHED = 64;
+	
+	// step playback
+	private Timer playTimer;
+	// step -> status changes to show it, only while playing
+	private Map<Integer,StepDelta> prefetched = new HashMap<Integer, StepDelta>();
+	// step index copy used to prepare steps, and model edit serial it was taken at
+	private StepIndex playIndex = null;
+	private long playSerial = -1;
+	private boolean prefetching = false;
+	// changes for step being shown by playback
+	private StepDelta nextDelta = null;
+	
+	// current step preview, only while plugin is active
+	private StepThumbnails thumbnails = null;
+	// model edit serial of last thumbnails update
+	private long thumbSerial = -1;
 	
 	// tool container and saving
 	private Container toolPanel = null;
@@ -69,6 +105,27 @@ public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
 	private JButton moveHere;
 	private JButton moveToPrev;
 	private JButton autoStep;
+	private JButton playSteps;
+	private JLabel stepPreview;
+	
+	
+	
+
+	/**
+	 * Status changes to go from previous step to a step while playing
+	 */
+	private static class StepDelta {
+		
+		// parts in previous step, back to normal
+		final int[] off;
+		// parts in step, highlighted
+		final int[] on;
+		
+		StepDelta(int[] off, int[] on) {
+			this.off = off;
+			this.on = on;
+		}
+	}
 	
 	
 	
@@ -81,6 +138,7 @@ public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
 //		dh = dhelp;
 //		undo = u;
 		display = gld;
+		connHandler = ch;
 		// controls for step editing
 		String imgFolder;
 		Dimension d = Toolkit.getDefaultToolkit().getScreenSize();
@@ -103,6 +161,32 @@ public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
 		autoStep = new JButton(new ImageIcon(this.getClass().getResource(imgFolder+"auto-step.png")));
 		autoStep.setToolTipText("Auto-generate steps");
 		autoStep.addActionListener(this);
+		playSteps = new JButton("Play");
+		playSteps.setToolTipText("Play building steps");
+		playSteps.addActionListener(this);
+		playTimer = new Timer(playInterval, this);
+		playTimer.setCoalesce(true);
+		stepPreview = new JLabel();
+		stepPreview.setPreferredSize(new Dimension(THUMB_SIZE, THUMB_SIZE));
+		stepPreview.setToolTipText("Current step");
+	}
+	
+	
+	
+	public static int getPlayInterval() {
+		return playInterval;
+	}
+
+
+
+	/**
+	 * Sets time for every step in playback
+	 * @param playInterval time in milliseconds
+	 */
+	public static void setPlayInterval(int playInterval) {
+		if (playInterval < 1)
+			throw new IllegalArgumentException("[BuildStepPlugin.setPlayInterval] Interval must be greater than 0.");
+		BuildStepPlugin.playInterval = playInterval;
 	}
 	
 	
@@ -115,16 +199,30 @@ public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
 		if (!(params[0] instanceof Container))
 			throw new IllegalArgumentException("[LDStepEditorPlugin.start] Param[0] must be a Container.");
 		toolPanel = (Container) params[0];
-		//stepEditing = true;
+		stepEditing = true;
 		currentStep = editor.getCurrStep();
 		highLightStep();
 		display.update();
+		thumbnails = new StepThumbnails(new SoftwareStepRenderer(), THUMB_SIZE, THUMB_SIZE, THUMB_CACHED);
+		thumbnails.setListener(new StepThumbnails.ThumbnailListener() {
+			
+			@Override
+			public void thumbnailReady(int step, BufferedImage thumbnail) {
+				if (stepEditing && step == currentStep) {
+					stepPreview.setIcon(new ImageIcon(thumbnail));
+				}
+			}
+		});
+		thumbSerial = -1;
+		updatePreview();
 		savedComponents = toolPanel.getComponents();
 		toolPanel.removeAll();
 		toolPanel.add(autoStep);
 		toolPanel.add(moveToPrev);
 		toolPanel.add(moveHere);
 		toolPanel.add(moveToNext);
+		toolPanel.add(playSteps);
+		toolPanel.add(stepPreview);
 		toolPanel.getParent().validate();
 	}
 
@@ -133,9 +231,15 @@ public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
 	@Override
 	public void reset() {
 		
-		//stepEditing = false;
+		stepEditing = false;
+		stopPlayback();
 		resetHighLight();
 		display.update();
+		if (thumbnails != null) {
+			thumbnails.dispose();
+			thumbnails = null;
+		}
+		stepPreview.setIcon(null);
 		toolPanel.removeAll();
 		for (Component c:savedComponents)
 			toolPanel.add(c);
@@ -184,10 +288,132 @@ public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
 	@Override
 	public void doStepChanged(int step) {
 		
-		resetHighLight();
+		if (step == currentStep)
+			return;
+		if (nextDelta != null && step == currentStep+1) {
+			// prepared by playback
+			applyDelta(nextDelta);
+		}
+		// only parts in steps between old and new one changes status
+		else if (step > currentStep) {
+			setStepStatus(currentStep, false, false);
+			for (int i=currentStep+1;i<step;i++) {
+				setStepStatus(i, false, false);
+			}
+			setStepStatus(step, true, false);
+		}
+		else {
+			setStepStatus(currentStep, false, true);
+			for (int i=step+1;i<currentStep;i++) {
+				setStepStatus(i, false, true);
+			}
+			setStepStatus(step, true, false);
+		}
 		currentStep = step;
-		highLightStep();
+		editor.setHighlightedStep(step);
 		display.update();
+		updatePreview();
+	}
+	
+	
+	
+	/**
+	 * Shows thumbnail of current step, thumbnails are updated if model 
+	 * is changed since last update
+	 */
+	private void updatePreview() {
+		
+		if (thumbnails == null)
+			return;
+		if (editor.getEditSerial() != thumbSerial) {
+			thumbnails.update(editor);
+			thumbSerial = editor.getEditSerial();
+		}
+		BufferedImage img = thumbnails.getThumbnail(currentStep);
+		// if not ready listener shows it when rendered
+		stepPreview.setIcon(img == null ? null : new ImageIcon(img));
+	}
+	
+	
+	
+	/**
+	 * Sets highlight and dim status for all parts in a step
+	 * @param step step to change
+	 * @param highLight true to highlight parts
+	 * @param dim true to dim parts
+	 */
+	private void setStepStatus(int step, boolean highLight, boolean dim) {
+		
+		for (LDRenderedPart rp: getStepParts(step)) {
+			if (highLight) {
+				rp.dimOff();
+				rp.highLight();
+			}
+			else if (dim) {
+				rp.highLightOff();
+				rp.dimOn();
+			}
+			else {
+				rp.highLightOff();
+				rp.dimOff();
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Sets status of parts prepared for next step
+	 */
+	private void applyDelta(StepDelta d) {
+		
+		for (int id: d.off) {
+			LDRenderedPart rp = getRendered(id);
+			if (rp != null) {
+				rp.highLightOff();
+				rp.dimOff();
+			}
+		}
+		for (int id: d.on) {
+			LDRenderedPart rp = getRendered(id);
+			if (rp != null) {
+				rp.dimOff();
+				rp.highLight();
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Looks up drawable rendered parts in a step
+	 */
+	private LDRenderedPart[] getStepParts(int step) {
+		
+		int[] ids = editor.getPartIdsInStep(step);
+		LDRenderedPart[] parts = new LDRenderedPart[ids.length];
+		int n = 0;
+		for (int id: ids) {
+			LDRenderedPart rp = getRendered(id);
+			if (rp != null) {
+				parts[n++] = rp;
+			}
+		}
+		return n == parts.length ? parts : Arrays.copyOf(parts, n);
+	}
+	
+	
+	
+	/**
+	 * Rendered part for a drawable model part
+	 * @return rendered part or null if part isn't drawable
+	 */
+	private LDRenderedPart getRendered(int id) {
+		
+		LDPrimitive p = editor.getPart(id);
+		if (p == null || !p.isDrawable())
+			return null;
+		return display.getPart(id);
 	}
 
 	
@@ -197,17 +423,17 @@ public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
 	 */
 	private void highLightStep() {
 
-		for (LDPrimitive p: editor.getPartsInStep(currentStep)) {
-			if (!p.isDrawable())
-				continue;
-			//System.out.println(p);
-			display.getPart(p.getId()).highLight();
+		editor.setHighlightedStep(currentStep);
+		for (int id: editor.getPartIdsInStep(currentStep)) {
+			LDRenderedPart rp = getRendered(id);
+			if (rp != null) {
+				rp.highLight();
+			}
 		}
-		for (int i=currentStep+1;i<=editor.getNumSteps();i++) {
-			for (LDPrimitive p: editor.getPartsInStep(i)) {
-				if (!p.isDrawable())
-					continue;
-				display.getPart(p.getId()).dimOn();
+		for (int id: editor.getPartIdsAfterStep(currentStep)) {
+			LDRenderedPart rp = getRendered(id);
+			if (rp != null) {
+				rp.dimOn();
 			}
 		}
 
@@ -220,72 +446,221 @@ public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
 	 */
 	private void resetHighLight() {
 
-		for (LDPrimitive p: editor.getPartsInStep(currentStep)) {
-			if (!p.isDrawable())
-				continue;
-			display.getPart(p.getId()).highLightOff();
+		editor.setHighlightedStep(-1);
+		for (int id: editor.getPartIdsInStep(currentStep)) {
+			LDRenderedPart rp = getRendered(id);
+			if (rp != null) {
+				rp.highLightOff();
+			}
 		}
-		for (int i=currentStep+1;i<=editor.getNumSteps();i++) {
-			for (LDPrimitive p: editor.getPartsInStep(i)) {
-				if (!p.isDrawable())
-					continue;
-				display.getPart(p.getId()).dimOff();
+		for (int id: editor.getPartIdsAfterStep(currentStep)) {
+			LDRenderedPart rp = getRendered(id);
+			if (rp != null) {
+				rp.dimOff();
 			}
 		}
 	}
 
 
+	/**
+	 * Computes steps in background, then applies them in a single pass
+	 */
+	private void startAutoStep() {
+		
+		autoStep.setEnabled(false);
+		// model data copied here, in event thread
+		final AutoStepBuilder builder = new AutoStepBuilder(editor.getPrimitives(), 
+				connHandler.getConnectionList(), PARTS_PER_STEP);
+		final long serial = editor.getEditSerial();
+		new SwingWorker<List<List<Integer>>, Void>() {
+
+			@Override
+			protected List<List<Integer>> doInBackground() {
+				return builder.compute();
+			}
+
+			@Override
+			protected void done() {
+				
+				autoStep.setEnabled(true);
+				try {
+					List<List<Integer>> steps = get();
+					if (!stepEditing || editor.getEditSerial() != serial)
+						// plugin closed or model changed while computing, steps are stale
+						return;
+					resetHighLight();
+					editor.setSteps(steps);
+					currentStep = editor.getCurrStep();
+					highLightStep();
+					display.update();
+					updatePreview();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					Logger.getGlobal().log(Level.SEVERE, "[BuildStepPlugin] Auto-step failed", e.getCause());
+					JOptionPane.showMessageDialog(autoStep, "Unable to compute steps:\n"+e.getCause().getLocalizedMessage(),
+							"Auto-STEP", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		}.execute();
+	}
+	
+	
+	
+	/**
+	 * Starts playing steps from current one, or from first if current is last
+	 */
+	private void startPlayback() {
+		
+		editor.unselectAll();
+		if (currentStep >= editor.getNumSteps()) {
+			editor.goFirstStep();
+		}
+		playSteps.setText("Stop");
+		playSteps.setToolTipText("Stop playing steps");
+		moveToNext.setEnabled(false);
+		moveHere.setEnabled(false);
+		moveToPrev.setEnabled(false);
+		autoStep.setEnabled(false);
+		prefetched.clear();
+		playIndex = null;
+		prefetch();
+		playTimer.setDelay(playInterval);
+		playTimer.setInitialDelay(playInterval);
+		playTimer.start();
+	}
+	
+	
+	
+	private void stopPlayback() {
+		
+		if (!playTimer.isRunning())
+			return;
+		playTimer.stop();
+		prefetched.clear();
+		playIndex = null;
+		playSteps.setText("Play");
+		playSteps.setToolTipText("Play building steps");
+		moveToNext.setEnabled(true);
+		moveHere.setEnabled(true);
+		moveToPrev.setEnabled(true);
+		autoStep.setEnabled(true);
+	}
+	
+	
+	
+	/**
+	 * Shows next step while playing, with status changes prepared in 
+	 * background if ready, then prepares steps ahead
+	 */
+	private void playNextStep() {
+		
+		if (currentStep >= editor.getNumSteps()) {
+			stopPlayback();
+			return;
+		}
+		if (editor.getEditSerial() == playSerial) {
+			nextDelta = prefetched.remove(currentStep+1);
+		}
+		try {
+			editor.nextStep();
+		}
+		finally {
+			nextDelta = null;
+		}
+		prefetch();
+	}
+	
+	
+	
+	/**
+	 * Computes in background status changes for next steps, from a 
+	 * copy of step index. Copy is taken again only if model is changed.
+	 */
+	private void prefetch() {
+		
+		if (prefetching)
+			return;
+		if (playIndex == null || editor.getEditSerial() != playSerial) {
+			prefetched.clear();
+			playIndex = editor.getStepIndexCopy();
+			playSerial = editor.getEditSerial();
+		}
+		Iterator<Integer> i = prefetched.keySet().iterator();
+		while (i.hasNext()) {
+			if (i.next() <= currentStep) {
+				i.remove();
+			}
+		}
+		final List<Integer> steps = new ArrayList<Integer>();
+		int last = Math.min(editor.getNumSteps(), currentStep+PREFETCH_STEPS);
+		for (int s=currentStep+1;s<=last;s++) {
+			if (!prefetched.containsKey(s)) {
+				steps.add(s);
+			}
+		}
+		if (steps.size() == 0)
+			return;
+		final StepIndex index = playIndex;
+		final long serial = playSerial;
+		prefetching = true;
+		new SwingWorker<Map<Integer,StepDelta>, Void>() {
+
+			@Override
+			protected Map<Integer,StepDelta> doInBackground() {
+				
+				Map<Integer,StepDelta> deltas = new HashMap<Integer, StepDelta>();
+				for (int s: steps) {
+					deltas.put(s, new StepDelta(index.getIds(s-1), index.getIds(s)));
+				}
+				return deltas;
+			}
+
+			@Override
+			protected void done() {
+				
+				prefetching = false;
+				try {
+					Map<Integer,StepDelta> deltas = get();
+					// dropped if playback stopped or model changed meanwhile
+					if (playTimer.isRunning() && serial == playSerial && editor.getEditSerial() == serial) {
+						prefetched.putAll(deltas);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					Logger.getGlobal().log(Level.WARNING, "[BuildStepPlugin] Unable to prepare steps", e.getCause());
+				}
+			}
+		}.execute();
+	}
+	
+	
+	
 	@Override
 	public void actionPerformed(ActionEvent e) {
 
+		if (e.getSource() == playTimer) {
+			playNextStep();
+			return;
+		}
+		if (e.getSource() == playSteps) {
+			if (playTimer.isRunning()) {
+				stopPlayback();
+			}
+			else {
+				startPlayback();
+			}
+			return;
+		}
+		// editing stops playback
+		stopPlayback();
 		if (e.getSource() == autoStep) {
 			int res = JOptionPane.showConfirmDialog(autoStep, "This will reorganize building steps.\nIt'll deletes every defined STEP.\nAre you sure?",
 					"Confirm auto-STEP", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
 			if (res == JOptionPane.YES_OPTION) {
 				editor.unselectAll();
-				resetHighLight();
-				int partPerStep = 3;
-				boolean submodelInStep = true;
-				List<LDPrimitive> parts;
-				if (editor.getNumSteps() > 0) {
-					// part has step, so get them in order
-					parts = new ArrayList<LDPrimitive>();
-					// copy parts in new list in same order that are in defined steps
-					for (int i=1;i<=editor.getNumSteps();i++) {
-						Collection<LDPrimitive> stepList = editor.getPartsInStep(i);
-						for (LDPrimitive p:stepList) {
-							parts.add(p);
-						}
-					}
-				}
-				else {
-					// no step defined, go on
-					parts = editor.getPrimitives();
-				}
-				// here you have parts filled with model parts
-				// here we go
-				editor.goFirstStep();
-				int partcount = 1;
-				for (LDPrimitive p:parts) {
-					editor.moveToCurrStep(p);
-					if (!p.isDrawable()) {
-						// if "part" is a META or a comment, ignore it in part count
-						continue;
-					}
-					if (submodelInStep && LDrawPart.existsCustomPart(p.getLdrawId())) {
-						// it is a submodel
-						// put it in a separate step alone
-						partcount = 1;
-						editor.nextStep();
-						continue;
-					}
-					partcount++;
-					if (partcount > partPerStep) {
-						editor.nextStep();
-						partcount = 1;
-					}
-				}
-				editor.goFirstStep();
+				startAutoStep();
 			}
 			return;
 		}
@@ -293,31 +668,25 @@ public class BuildStepPlugin implements LDEditorPlugin, ActionListener {
 			return;
 		if (e.getSource() == moveToNext) {
 			resetHighLight();
-			for (int id: editor.getSelected()) {
-				LDPrimitive p = editor.getPart(id);
-				editor.moveToStep(p,editor.getCurrStep()+1);
-			}			
+			editor.moveToStep(editor.getSelected(), editor.getCurrStep()+1);
 			highLightStep();
 			display.update();			
 		}
 		else if (e.getSource() == moveHere) {
 			resetHighLight();
-			for (int id: editor.getSelected()) {
-				LDPrimitive p = editor.getPart(id);
-				editor.moveToCurrStep(p);
-			}
+			editor.moveToStep(editor.getSelected(), editor.getCurrStep());
 			highLightStep();
 			display.update();
 		}
 		else if (e.getSource() == moveToPrev) {
+			if (editor.getCurrStep() == 0)
+				return;
 			resetHighLight();
-			for (int id: editor.getSelected()) {
-				LDPrimitive p = editor.getPart(id);
-				editor.moveToStep(p,editor.getCurrStep()-1);
-			}			
+			editor.moveToStep(editor.getSelected(), editor.getCurrStep()-1);
 			highLightStep();
 			display.update();
 		}
+		updatePreview();
 	}
 
 
@@ -0,0 +1,188 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.j3dgeom.Point3D;
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawCommand;
+
+
+/**
+ * Helpers to compute content keys for geometry, used to recognize
+ * identical blocks and generated parts
+ * <p>
+ * Coordinates are rounded to 1/1000 LDU, so keys are stable against
+ * floating point noise.
+ *
+ */
+public final class ContentHash {
+
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+	private ContentHash() { /* static only */ }
+
+
+
+	/**
+	 * Gets matrix values in LDraw order: x y z a b c d e f g h i
+	 * @param m matrix
+	 * @param v destination array
+	 * @param off offset in destination array, needs 12 free places
+	 */
+	public static void matrixValues(Matrix3D m, float[] v, int off) {
+
+		// read in place, called on every move by group alignment
+		v[off] = m.getX();
+		v[off+1] = m.getY();
+		v[off+2] = m.getZ();
+		v[off+3] = m.getA();
+		v[off+4] = m.getB();
+		v[off+5] = m.getC();
+		v[off+6] = m.getD();
+		v[off+7] = m.getE();
+		v[off+8] = m.getF();
+		v[off+9] = m.getG();
+		v[off+10] = m.getH();
+		v[off+11] = m.getI();
+	}
+
+
+
+	/**
+	 * Appends rounded matrix values to key
+	 */
+	public static StringBuilder appendMatrix(StringBuilder key, Matrix3D m) {
+
+		float[] v = new float[12];
+		matrixValues(m, v, 0);
+		for (float f: v) {
+			appendValue(key, f);
+		}
+		return key;
+	}
+
+
+
+	/**
+	 * Appends rounded point coordinates to key
+	 */
+	public static StringBuilder appendPoint(StringBuilder key, Point3D p) {
+
+		appendValue(key, p.x);
+		appendValue(key, p.y);
+		appendValue(key, p.z);
+		return key;
+	}
+
+
+
+	private static void appendValue(StringBuilder key, float f) {
+
+		key.append(Math.round(f*1000.0)).append(' ');
+	}
+
+
+
+	/**
+	 * Key for a single primitive: type, ldraw id, color and placement
+	 * <p>
+	 * Primitive global id isn't part of key
+	 * @param p primitive
+	 * @return key string
+	 */
+	public static String primitiveKey(LDPrimitive p) {
+
+		StringBuilder key = new StringBuilder();
+		key.append(p.getType()).append(' ').append(p.getColorIndex()).append(' ');
+		if (p.getType() == LDrawCommand.REFERENCE) {
+			key.append(p.getLdrawId().toLowerCase()).append(' ');
+			appendMatrix(key, p.getTransformation());
+		}
+		else if (p.getType() == LDrawCommand.LINE
+				|| p.getType() == LDrawCommand.AUXLINE
+				|| p.getType() == LDrawCommand.TRIANGLE
+				|| p.getType() == LDrawCommand.QUAD) {
+			for (float f: p.getPointsFV()) {
+				appendValue(key, f);
+			}
+		}
+		else {
+			// META and comments
+			key.append(p.getLdrawId());
+		}
+		return key.toString();
+	}
+
+
+
+	/**
+	 * Digest of a set of keys, regardless of key order
+	 * @param keys keys to digest
+	 * @return hex string with SHA-1 digest
+	 */
+	public static String digest(Collection<String> keys) {
+
+		List<String> sorted = new ArrayList<String>(keys);
+		Collections.sort(sorted);
+		return orderedDigest(sorted);
+	}
+
+
+
+	/**
+	 * Digest of a list of keys, in list order
+	 * <p>
+	 * Use it when key order is part of content, like primitives in a model
+	 * @param keys keys to digest
+	 * @return hex string with SHA-1 digest
+	 */
+	public static String orderedDigest(List<String> keys) {
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// every JRE must provide SHA-1
+			throw new IllegalStateException("[ContentHash] SHA-1 digest not available", e);
+		}
+		for (String k: keys) {
+			md.update(k.getBytes(UTF8));
+			md.update((byte) '\n');
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b: md.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+}
@@ -21,6 +21,9 @@
 package bricksnspace.ldeditor;
 
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import bricksnspace.j3dgeom.Point3D;
@@ -68,11 +71,7 @@ public class DeleteModePlugin implements LDEditorPlugin {
 		
 		// two modes: if parts are already selected, delete and enter delete mode
 		if (editor.getSelected().size() > 0) {
-			undo.startUndoRecord();
-			for (int id : editor.getSelected()) {
-				undo.recordDelete(editor.delPart(editor.getPart(id)));
-			}
-			undo.endUndoRecord();
+			delete(editor.getSelected());
 			editor.clearSelected();
 		}
 		dh.setPointerMode(PointerMode.STUD,0x2ff8080);
@@ -101,6 +100,27 @@ public class DeleteModePlugin implements LDEditorPlugin {
 		return inDelete;
 	}
 
+	/**
+	 * Deletes parts in a single batch, with one undo record
+	 */
+	private void delete(Collection<Integer> ids) {
+		
+		List<LDPrimitive> parts = new ArrayList<LDPrimitive>(ids.size());
+		for (int id : ids) {
+			LDPrimitive p = editor.getPart(id);
+			if (p != null) {
+				parts.add(p);
+			}
+		}
+		undo.startUndoRecord();
+		for (LDPrimitive p : editor.delParts(parts)) {
+			undo.recordDelete(p);
+		}
+		undo.endUndoRecord();
+	}
+	
+	
+	
 	@Override
 	public void doMove(int partId, Point3D eyeNear, Point3D eyeFar) {
 		// do nothing
@@ -120,11 +140,7 @@ public class DeleteModePlugin implements LDEditorPlugin {
 	public void doWindowSelected(Set<Integer> selected) {
 		
 		if (selected.size() > 0) {
-			undo.startUndoRecord();
-			for (int id : selected) {
-				undo.recordDelete(editor.delPart(editor.getPart(id)));
-			}
-			undo.endUndoRecord();
+			delete(selected);
 			editor.clearSelected();
 		}
 	}
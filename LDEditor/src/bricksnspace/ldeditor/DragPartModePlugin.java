@@ -22,6 +22,7 @@ package bricksnspace.ldeditor;
 
 import java.awt.event.KeyEvent;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -54,11 +55,30 @@ public class DragPartModePlugin implements LDEditorPlugin {
 	ConnectionHandler connHandler = null;
 	LDrawGLDisplay display = null;
 	Undo<LDPrimitive> undo = null;
-	LDPrimitive currentPart = null;
+	MovingPart currentPart = null;
+	// dragged parts, as they are in model
 	List<LDPrimitive> tempPart;
-	LDRenderedPart currPartRendered = null;
+	// moves dragged parts around their center
+	Matrix3D origin;
+	// autoconnect for more than one part
+	GroupConnector groupConn = null;
+	// aligned group position, owned by plugin and updated in place
+	private final Point3D groupPos = new Point3D(0, 0, 0);
+	private boolean groupPlaced = false;
+	int groupTarget = 0;
 	boolean movingPart = false; 
 	private static final String movingPartName = "__internal_dragging__";
+	private static final String proxyPartName = "__internal_dragging_proxy__";
+	// proxy cell size in LDU, two studs
+	private static final float PROXY_CELL = 40;
+	// proxy box part, a cube from -PROXY_BOX_HALF to PROXY_BOX_HALF LDU
+	private static final String PROXY_BOX = "box.dat";
+	private static final float PROXY_BOX_HALF = 1;
+	// cell fraction filled by a box, leaves a gap between boxes
+	private static final float PROXY_FILL = 0.9f;
+	// internal use parts, registered once and emptied after every drag
+	private LDrawPart movingBlock = null;
+	private LDrawPart proxy = null;
 	private int partId;
 
 	
@@ -94,15 +114,16 @@ public class DragPartModePlugin implements LDEditorPlugin {
 			return;
 		}
 		// if user drag a part not in selection set 
-		LDrawPart savedPart = LDrawPart.newInternalUsePart(movingPartName);
+		LDrawPart savedPart = getInternalPart(movingPartName, movingBlock);
+		movingBlock = savedPart;
 		tempPart = new ArrayList<LDPrimitive>();
 		if (editor.getSelected().size() == 0 || !editor.getSelected().contains(partId)) {
 			editor.unselectAll();
-			tempPart.add(editor.getPart(partId).getClone());
+			tempPart.add(editor.getPart(partId));
 		}
 		for (int i: editor.getSelected()) {
-			// copy part to temp block
-			tempPart.add(editor.getPart(i).getClone());
+			// primitives are immutable, no need to copy
+			tempPart.add(editor.getPart(i));
 		}
 		// computes moved part "center of gravity"
 		float x=0, y=0, z=0;
@@ -116,22 +137,109 @@ public class DragPartModePlugin implements LDEditorPlugin {
 		y /= tempPart.size();
 		z /= tempPart.size();
 		// new origin
-		Matrix3D origin = new Matrix3D().moveTo(-x,-y,-z);
+		origin = new Matrix3D().moveTo(-x,-y,-z);
+		// temp block is only a preview
 		for (LDPrimitive p: tempPart) {
-			p = p.transform(origin);
-			savedPart.addPart(p);
+			savedPart.addPart(p.transform(origin));
 		}
 		editor.unselectAll();
-		// remove parts
-		for (LDPrimitive p: tempPart) {
-			editor.delPart(editor.getPart(p.getId()));
+		if (tempPart.size() > 1) {
+			// connection points of still parts are indexed only once
+			Set<Integer> ids = new HashSet<Integer>();
+			for (LDPrimitive p: tempPart) {
+				ids.add(p.getId());
+			}
+			groupConn = new GroupConnector(connHandler, ids, editor, new Point3D(x,y,z));
 		}
+		else {
+			groupConn = null;
+		}
+		groupPlaced = false;
+		groupTarget = 0;
+		// parts stay in model, hidden while dragging
+		editor.startDragging(tempPart);
 		dh.resetPointerMatrix();
-		currentPart = LDPrimitive.newGlobalPart(movingPartName,LDrawColor.CURRENT,dh.getCurrentMatrix());
-		currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
+		LDPrimitive moving = LDPrimitive.newGlobalPart(movingPartName,LDrawColor.CURRENT,dh.getCurrentMatrix());
+		if (tempPart.size() > LDEditor.getDragProxyThreshold()) {
+			// too many parts, render a simplified preview
+			buildProxy(savedPart);
+			currentPart = new MovingPart(moving,
+					LDPrimitive.newGlobalPart(proxyPartName,LDrawColor.CURRENT,dh.getCurrentMatrix()));
+		}
+		else {
+			currentPart = new MovingPart(moving);
+		}
 		display.disableHover();
 		movingPart = true;
-		display.addRenderedPart(currPartRendered.fastMove(editor.getCursor()));
+		display.addRenderedPart(currentPart.fastMove(editor.getCursor()));
+	}
+	
+	
+	
+	/**
+	 * Builds a low detail preview of dragged parts: a box for every
+	 * space cell that contains at least one part
+	 * @param m block with dragged parts, already centered
+	 */
+	private void buildProxy(LDrawPart m) {
+		
+		proxy = getInternalPart(proxyPartName, proxy);
+		float half = PROXY_CELL * PROXY_FILL / 2 / PROXY_BOX_HALF;
+		Set<Long> cells = new HashSet<Long>();
+		for (LDPrimitive p: m.getPrimitives()) {
+			if (p.getType() != LDrawCommand.REFERENCE) {
+				// ignore non-reference elements
+				continue;
+			}
+			Matrix3D t = p.getTransformation();
+			long ix = (long) Math.floor(t.getX()/PROXY_CELL);
+			long iy = (long) Math.floor(t.getY()/PROXY_CELL);
+			long iz = (long) Math.floor(t.getZ()/PROXY_CELL);
+			Long key = ((ix & 0x1fffff) << 42) | ((iy & 0x1fffff) << 21) | (iz & 0x1fffff);
+			if (cells.add(key)) {
+				// first part gives color to cell
+				proxy.addPart(LDPrimitive.newGlobalPart(PROXY_BOX, p.getColorIndex(), 
+						Matrix3D.getScale(half, half, half).moveTo(
+								(ix+0.5f)*PROXY_CELL, (iy+0.5f)*PROXY_CELL, (iz+0.5f)*PROXY_CELL)));
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Internal use part for preview, reused if still registered
+	 * @param name part name
+	 * @param part part registered by this plugin, or null
+	 * @return an empty part, registered as name
+	 */
+	private static LDrawPart getInternalPart(String name, LDrawPart part) {
+		
+		if (part != null && LDrawPart.existsInternalUsePart(name) 
+				&& LDrawPart.getPart(name) == part) {
+			return part;
+		}
+		return LDrawPart.newInternalUsePart(name);
+	}
+	
+	
+	
+	/**
+	 * Empties preview parts, so they don't keep dragged parts or boxes 
+	 * after drop or cancel
+	 * <p>
+	 * Library has no way to unregister a part, so preview parts stay 
+	 * registered, empty, and are reused at next drag
+	 */
+	private void releasePreview() {
+		
+		for (LDrawPart m: new LDrawPart[] { movingBlock, proxy }) {
+			if (m == null)
+				continue;
+			for (LDPrimitive p: new ArrayList<LDPrimitive>(m.getPrimitives())) {
+				m.delPart(p);
+			}
+		}
 	}
 	
 	
@@ -144,15 +252,16 @@ public class DragPartModePlugin implements LDEditorPlugin {
 		
 		if (currentPart != null) {
 			display.delRenderedPart(currentPart.getId());
-			for (LDPrimitive p: tempPart) {
-				editor.addPart(p);
-			}
+			// parts are still in place
+			editor.endDragging();
 		}
 		if (connHandler.getTarget() != null) {
 			display.getPart(connHandler.getTarget().getPartId()).unConnect();
 		}
+		unConnectGroup();
+		groupConn = null;
 		currentPart = null;
-		currPartRendered = null;
+		releasePreview();
 		display.enableHover();
 		movingPart = false;
 	}
@@ -181,38 +290,37 @@ public class DragPartModePlugin implements LDEditorPlugin {
 //				cursor = new Point3D(pos, 1);
 //			}
 //			Point3D prevCursor = cursor;
-			if (LDEditor.isAutoconnect()) {
+			LDPrimitive placedPart;
+			if (LDEditor.isAutoconnect() && groupConn != null) {
+				unConnectGroup();
+				placedPart = currentPart.getPart().moveTo(getMovingPosition());
+			}
+			else if (LDEditor.isAutoconnect()) {
 				if (connHandler.isLocked()) {
 					display.getPart(connHandler.getTarget().getPartId()).unConnect();
 				}
-				currentPart = currentPart.moveTo(connHandler.getLastConn());
+				placedPart = currentPart.getPart().moveTo(connHandler.getLastConn());
 			}
 			else {
-				currentPart = currentPart.moveTo(editor.getCursor()); //prevCursor);
+				placedPart = currentPart.getPart().moveTo(editor.getCursor()); //prevCursor);
 			}
-			undo.startUndoRecord();
 			display.delRenderedPart(currentPart.getId());
+			// a single transformation for whole group, parts keep their ids
+			Matrix3D t = origin.transform(placedPart.getTransformation());
+			List<LDPrimitive> movedParts = new ArrayList<LDPrimitive>(tempPart.size());
+			undo.startUndoRecord();
 			for (LDPrimitive p:tempPart) {
-				if (p.getType() != LDrawCommand.REFERENCE) {
-					// ignore non-reference elements
-					continue;
-				}
+				LDPrimitive np = p.transform(t);
+				movedParts.add(np);
 				undo.recordDelete(p);
-			}
-			LDrawPart m = LDrawPart.getPart(currentPart.getLdrawId());
-			Matrix3D t = currentPart.getTransformation();
-			for (LDPrimitive p: m.getPrimitives()) {
-				if (p.getType() != LDrawCommand.REFERENCE) {
-					// ignore non-reference elements
-					continue;
-				}
-				LDPrimitive np = LDPrimitive.newGlobalPart(p.getLdrawId(), p.getColorIndex(), p.getTransformation().transform(t));
-				editor.addPart(np);
 				undo.recordAdd(np);
 			}
 			undo.endUndoRecord();
+			editor.replaceParts(movedParts);
+			editor.endDragging();
+			groupConn = null;
 			currentPart = null;
-			currPartRendered = null;
+			releasePreview();
 			movingPart = false;
 		}
 		return movingPart;
@@ -226,7 +334,27 @@ public class DragPartModePlugin implements LDEditorPlugin {
 	@Override
 	public void doMove(int partId, Point3D eyeNear, Point3D eyeFar) {
 		
-		if (LDEditor.isAutoconnect()) {
+		if (LDEditor.isAutoconnect() && groupConn != null) {
+			unConnectGroup();
+			// cursor point changes in place, so it is copied
+			Point3D c = editor.getCursor();
+			groupPos.x = c.x;
+			groupPos.y = c.y;
+			groupPos.z = c.z;
+			groupPlaced = true;
+			if (groupConn.align(dh.getCurrentMatrix().moveTo(groupPos))) {
+				Point3D off = groupConn.getOffset();
+				groupPos.x += off.x;
+				groupPos.y += off.y;
+				groupPos.z += off.z;
+				groupTarget = groupConn.getTargetPartId();
+				LDRenderedPart ldrp = display.getPart(groupTarget);
+				if (ldrp != null)
+					ldrp.connected();
+			}
+			display.addRenderedPart(currentPart.fastMove(groupPos));
+		}
+		else if (LDEditor.isAutoconnect()) {
 			ConnectionPoint p = connHandler.getTarget();
 			if (p != null) {
 				LDRenderedPart ldrp = display.getPart(p.getPartId());
@@ -234,25 +362,50 @@ public class DragPartModePlugin implements LDEditorPlugin {
 					ldrp.unConnect();
 			}
 			//System.out.println(currentPartRendered.getConnections());
-			if (connHandler.getConnectionPoint(currentPart,dh.getCurrentMatrix(),editor.getCursor(), eyeNear)) {
-				// needs alignment
-				currentPart = currentPart.setTransform(connHandler.getAlignMatrix());
-				currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
+			if (connHandler.getConnectionPoint(currentPart.getPart(),dh.getCurrentMatrix(),editor.getCursor(), eyeNear)) {
+				// needs alignment, rendered part is rebuilt only if rotation changes
+				currentPart.setTransform(connHandler.getAlignMatrix());
 			}
 			if (connHandler.isLocked()) {
 				display.getPart(connHandler.getTarget().getPartId()).connected();
 			}
 
-			display.addRenderedPart(currPartRendered.fastMove(connHandler.getLastConn()));
+			display.addRenderedPart(currentPart.fastMove(connHandler.getLastConn()));
 		}
 		else {
-			display.addRenderedPart(currPartRendered.fastMove(editor.getCursor()));
+			display.addRenderedPart(currentPart.fastMove(editor.getCursor()));
 		}
 			
 	}
 	
 	
 	
+	/**
+	 * Current position of dragged parts
+	 */
+	private Point3D getMovingPosition() {
+		
+		if (!LDEditor.isAutoconnect()) 
+			return editor.getCursor();
+		if (groupConn != null) 
+			return groupPlaced ? groupPos : editor.getCursor();
+		return connHandler.getLastConn();
+	}
+	
+	
+	
+	private void unConnectGroup() {
+		
+		if (groupTarget != 0) {
+			LDRenderedPart ldrp = display.getPart(groupTarget);
+			if (ldrp != null)
+				ldrp.unConnect();
+			groupTarget = 0;
+		}
+	}
+	
+	
+	
 	/* (non Javadoc)
 	 * @see bricksnspace.ldraw3d.LDEditorPlugin#doKeyPress(java.awt.event.KeyEvent)
 	 */
@@ -273,10 +426,9 @@ public class DragPartModePlugin implements LDEditorPlugin {
 				dh.rotPointerX(-LDEditor.getRotateStep());
 			}
 			else return false;
-			currentPart = currentPart.setTransform(dh.getCurrentMatrix());
-			currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
-			display.addRenderedPart(currPartRendered.fastMove(
-					LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor()));
+			currentPart.setTransform(dh.getCurrentMatrix());
+			display.addRenderedPart(currentPart.fastMove(
+					getMovingPosition()));
 			return true;
 		}
 		return false;
@@ -293,10 +445,9 @@ public class DragPartModePlugin implements LDEditorPlugin {
 	public void doColorchanged(int color) { 
 		
 		if (movingPart) {
-			currentPart = currentPart.setColorIndex(color);
-			currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
-			display.addRenderedPart(currPartRendered.fastMove(
-					LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor()));
+			currentPart.setColorIndex(color);
+			display.addRenderedPart(currentPart.fastMove(
+					getMovingPosition()));
 		}
 	}
 	
@@ -306,10 +457,9 @@ public class DragPartModePlugin implements LDEditorPlugin {
 	public boolean doMatrixChanged() {
 		
 		if (movingPart) {
-			currentPart = currentPart.setTransform(dh.getCurrentMatrix());
-			currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
-			display.addRenderedPart(currPartRendered.fastMove(
-					LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor()));
+			currentPart.setTransform(dh.getCurrentMatrix());
+			display.addRenderedPart(currentPart.fastMove(
+					getMovingPosition()));
 		}
 		return movingPart;
 	}
@@ -50,8 +50,7 @@ public class DuplicatePartModePlugin implements LDEditorPlugin {
 	ConnectionHandler connHandler = null;
 	LDrawGLDisplay display = null;
 	Undo<LDPrimitive> undo = null;
-	LDPrimitive currentPart = null;
-	LDRenderedPart currPartRendered = null;
+	MovingPart currentPart = null;
 	boolean inSelect = false;
 	boolean movingPart = false; 
 
@@ -93,7 +92,6 @@ public class DuplicatePartModePlugin implements LDEditorPlugin {
 			}
 		}
 		currentPart = null;
-		currPartRendered = null;
 		movingPart = false;
 		inSelect = false;
 		dh.resetPointer();
@@ -109,13 +107,12 @@ public class DuplicatePartModePlugin implements LDEditorPlugin {
 		if (inSelect && mode == PickMode.NONE && partId != 0) {
 			LDPrimitive p = editor.getPart(partId);
 			dh.setPointerMatrix(p.getTransformation());
-			currentPart = LDPrimitive.newGlobalPart(p.getLdrawId(),p.getColorIndex(),
-					dh.getCurrentMatrix());
-			currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
+			currentPart = new MovingPart(LDPrimitive.newGlobalPart(p.getLdrawId(),p.getColorIndex(),
+					dh.getCurrentMatrix()));
 			display.disableHover();
 			inSelect = false;
 			movingPart = true;
-			display.addRenderedPart(currPartRendered.fastMove(editor.getCursor()));
+			display.addRenderedPart(currentPart.fastMove(editor.getCursor()));
 			dh.resetPointer();
 		}
 		else if (movingPart && mode == PickMode.NONE) {
@@ -134,18 +131,19 @@ public class DuplicatePartModePlugin implements LDEditorPlugin {
 				cursor = new Point3D(pos, 1);
 			}
 			Point3D prevCursor = cursor;
+			LDPrimitive placedPart;
 			if (LDEditor.isAutoconnect()) {
 				if (connHandler.isLocked()) {
 					display.getPart(connHandler.getTarget().getPartId()).unConnect();;
 				}
-				currentPart = currentPart.moveTo(connHandler.getLastConn());
+				placedPart = currentPart.getPart().moveTo(connHandler.getLastConn());
 			}
 			else {
-				currentPart = currentPart.moveTo(prevCursor);
+				placedPart = currentPart.getPart().moveTo(prevCursor);
 			}
 			undo.startUndoRecord();
-			editor.addPart(currentPart);
-			undo.recordAdd(currentPart);
+			editor.addPart(placedPart);
+			undo.recordAdd(placedPart);
 			undo.endUndoRecord();
 			display.enableHover();
 			if (LDEditor.isRepeatBrick()) {
@@ -175,18 +173,17 @@ public class DuplicatePartModePlugin implements LDEditorPlugin {
 					ldrp.unConnect();
 			}
 			//System.out.println(currentPartRendered.getConnections());
-			if (connHandler.getConnectionPoint(currentPart,dh.getCurrentMatrix(),editor.getCursor(), eyeNear)) {
-				// needs alignment
-				currentPart = currentPart.setTransform(connHandler.getAlignMatrix());
-				currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
+			if (connHandler.getConnectionPoint(currentPart.getPart(),dh.getCurrentMatrix(),editor.getCursor(), eyeNear)) {
+				// needs alignment, rendered part is rebuilt only if rotation changes
+				currentPart.setTransform(connHandler.getAlignMatrix());
 			}
 			if (connHandler.isLocked()) {
 				display.getPart(connHandler.getTarget().getPartId()).connected();
 			}
-			display.addRenderedPart(currPartRendered.fastMove(connHandler.getLastConn()));
+			display.addRenderedPart(currentPart.fastMove(connHandler.getLastConn()));
 		}
 		else {
-			display.addRenderedPart(currPartRendered.fastMove(editor.getCursor()));
+			display.addRenderedPart(currentPart.fastMove(editor.getCursor()));
 		}
 	}
 	
@@ -234,9 +231,8 @@ public class DuplicatePartModePlugin implements LDEditorPlugin {
 				dh.rotPointerX(-LDEditor.getRotateStep());
 			}
 			else return false;
-			currentPart = currentPart.setTransform(dh.getCurrentMatrix());
-			currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
-			display.addRenderedPart(currPartRendered.fastMove(
+			currentPart.setTransform(dh.getCurrentMatrix());
+			display.addRenderedPart(currentPart.fastMove(
 					LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor()));
 			return true;
 		}
@@ -259,9 +255,8 @@ public class DuplicatePartModePlugin implements LDEditorPlugin {
 	public boolean doMatrixChanged() {
 		
 		if (movingPart) {
-			currentPart = currentPart.setTransform(dh.getCurrentMatrix());
-			currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
-			display.addRenderedPart(currPartRendered.fastMove(
+			currentPart.setTransform(dh.getCurrentMatrix());
+			display.addRenderedPart(currentPart.fastMove(
 					LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor()));
 		}
 		return movingPart;
@@ -0,0 +1,209 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.j3dgeom.Point3D;
+import bricksnspace.ldrawlib.ConnectionPoint;
+import bricksnspace.ldrawlib.LDFlexPart;
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Flexible parts generation without user interface
+ * <p>
+ * Segment placement for many flex parts is computed concurrently
+ * on a thread pool. Library lookup and primitive creation are done
+ * on caller thread, in request order.
+ *
+ */
+public final class FlexBatch {
+
+
+	private FlexBatch() { /* static only */ }
+
+
+
+	/**
+	 * A flexible part to generate
+	 */
+	public static class FlexRequest {
+
+		private final String flexId;
+		private final int colorIndex;
+		private final Matrix3D head;
+		private final Matrix3D tail;
+		private final List<ConnectionPoint> constraints;
+
+		/**
+		 * @param flexId LDraw id of flex part
+		 * @param colorIndex color for all generated primitives
+		 * @param head head part transformation, in model coordinates
+		 * @param tail tail part transformation, in model coordinates
+		 * @param constraints constraint points, in model coordinates, can be null
+		 */
+		public FlexRequest(String flexId, int colorIndex, Matrix3D head, Matrix3D tail,
+				List<ConnectionPoint> constraints) {
+
+			if (flexId == null || head == null || tail == null)
+				throw new IllegalArgumentException("[FlexRequest] Flex id, head and tail must be not null.");
+			this.flexId = flexId;
+			this.colorIndex = colorIndex;
+			this.head = head;
+			this.tail = tail;
+			if (constraints == null) {
+				this.constraints = Collections.emptyList();
+			}
+			else {
+				this.constraints = new ArrayList<ConnectionPoint>(constraints);
+			}
+		}
+
+		public String getFlexId() {
+			return flexId;
+		}
+
+		public int getColorIndex() {
+			return colorIndex;
+		}
+
+		public Matrix3D getHead() {
+			return head;
+		}
+
+		public Matrix3D getTail() {
+			return tail;
+		}
+
+		public List<ConnectionPoint> getConstraints() {
+			return constraints;
+		}
+	}
+
+
+
+	/**
+	 * Generates a single flex part
+	 * @param request flex to generate
+	 * @return head, tail and mid segment primitives, in model coordinates
+	 */
+	public static List<LDPrimitive> generate(FlexRequest request) {
+
+		return generate(Collections.singletonList(request), 1).get(0);
+	}
+
+
+
+	/**
+	 * Generates many flex parts concurrently
+	 * @param requests flex parts to generate
+	 * @param threads number of threads to use
+	 * @return for every request, in same order, head, tail and mid segment
+	 *    primitives, in model coordinates
+	 */
+	public static List<List<LDPrimitive>> generate(List<FlexRequest> requests, int threads) {
+
+		if (requests == null)
+			throw new IllegalArgumentException("[FlexBatch.generate] Request list must be not null.");
+		if (threads < 1)
+			throw new IllegalArgumentException("[FlexBatch.generate] Threads must be greater than 0.");
+		// library lookup on caller thread
+		final List<LDFlexPart> flexParts = new ArrayList<LDFlexPart>(requests.size());
+		for (FlexRequest r: requests) {
+			LDFlexPart fp = LDFlexPart.getFlexPart(r.getFlexId());
+			if (fp == null)
+				throw new IllegalArgumentException("[FlexBatch.generate] Unknown flex part: "+r.getFlexId());
+			flexParts.add(fp);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, requests.size())));
+		try {
+			List<Future<List<Matrix3D>>> results = new ArrayList<Future<List<Matrix3D>>>(requests.size());
+			for (int i=0;i<requests.size();i++) {
+				final FlexRequest r = requests.get(i);
+				final LDFlexPart fp = flexParts.get(i);
+				results.add(pool.submit(new Callable<List<Matrix3D>>() {
+
+					@Override
+					public List<Matrix3D> call() {
+						return getMidMatrices(fp, r);
+					}
+				}));
+			}
+			// primitives are created in request order
+			List<List<LDPrimitive>> flexList = new ArrayList<List<LDPrimitive>>(requests.size());
+			for (int i=0;i<requests.size();i++) {
+				FlexRequest r = requests.get(i);
+				LDFlexPart fp = flexParts.get(i);
+				List<Matrix3D> mid = results.get(i).get();
+				List<LDPrimitive> parts = new ArrayList<LDPrimitive>(mid.size()+2);
+				parts.add(LDPrimitive.newGlobalPart(fp.getStart(), r.getColorIndex(), r.getHead()));
+				parts.add(LDPrimitive.newGlobalPart(fp.getEnd(), r.getColorIndex(), r.getTail()));
+				Point3D headOffset = r.getHead().getOffsetPoint();
+				Matrix3D toModel = new Matrix3D().moveTo(headOffset);
+				for (Matrix3D mv: mid) {
+					parts.add(LDPrimitive.newGlobalPart(fp.getMid(), r.getColorIndex(), mv.transform(toModel)));
+				}
+				flexList.add(parts);
+			}
+			return flexList;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("[FlexBatch.generate] Interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("[FlexBatch.generate] Generation failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+
+	/**
+	 * Segment placement, relative to head part position
+	 * <p>
+	 * Same normalization used by interactive flex editing
+	 */
+	private static List<Matrix3D> getMidMatrices(LDFlexPart fp, FlexRequest r) {
+
+		Point3D headOffset = r.getHead().getOffsetPoint();
+		Point3D tailOffset = headOffset.vector(r.getTail().getOffsetPoint());
+		List<ConnectionPoint> constraints = new ArrayList<ConnectionPoint>(r.getConstraints().size());
+		for (ConnectionPoint cp: r.getConstraints()) {
+			constraints.add(ConnectionPoint.getDummy(headOffset.vector(cp.getP1()),
+					headOffset.vector(cp.getP2())));
+		}
+		FlexGenerator generator = new FlexGenerator(fp);
+		return generator.getMidMatrices(r.getHead().getOnlyRotation(),
+				r.getTail().getOnlyRotation().moveTo(tailOffset), constraints);
+	}
+
+}
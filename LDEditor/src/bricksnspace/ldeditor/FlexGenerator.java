@@ -0,0 +1,413 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import bricksnspace.j3dgeom.JSimpleGeom;
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.j3dgeom.Point3D;
+import bricksnspace.ldraw3d.DrawHelpers;
+import bricksnspace.ldrawlib.ConnectionPoint;
+import bricksnspace.ldrawlib.LDFlexPart;
+
+
+/**
+ * Computes placement of mid segments for a flexible part
+ * <p>
+ * Bézier curve is densely sampled, then resampled at equal arc length
+ * steps, so sample density doesn't depend on curve parameter speed.
+ * Continuous parts (hoses) get stretched segments from a single greedy
+ * pass: a segment grows while it stays within an angular tolerance from 
+ * the curve, so straight runs use long segments and bends short ones.
+ * Fixed length parts (chains, tracks) get segments placed exactly at
+ * segment length along the curve.
+ * <p>
+ * Generator doesn't create primitives, so it is safe to use it
+ * outside event thread.
+ *
+ */
+public class FlexGenerator {
+
+	// curve samples for every LDU of length
+	private static final float SAMPLES_PER_LDU = 2;
+	private static final int MIN_SAMPLES = 32;
+
+	// default tolerance between a segment and curve, in degree
+	private static float defaultTolerance = 2.5f;
+
+	private final LDFlexPart flexPart;
+	private float tolerance;
+	// tolerance in radians
+	private float radTolerance;
+
+
+
+	public FlexGenerator(LDFlexPart fp) {
+
+		if (fp == null)
+			throw new IllegalArgumentException("[FlexGenerator] Flex part must be not null.");
+		flexPart = fp;
+		setAngularTolerance(defaultTolerance);
+	}
+
+
+
+	public static float getDefaultTolerance() {
+		return defaultTolerance;
+	}
+
+
+
+	/**
+	 * Sets default tolerance for new generators
+	 * @param degree max angle between a segment and curve
+	 */
+	public static void setDefaultTolerance(float degree) {
+		if (degree <= 0 || degree >= 90)
+			throw new IllegalArgumentException("[FlexGenerator.setDefaultTolerance] Tolerance must be between 0 and 90 degree.");
+		defaultTolerance = degree;
+	}
+
+
+
+	/**
+	 * Sets max angle between a segment and curve, used for continuous parts
+	 * @param degree tolerance in degree
+	 */
+	public void setAngularTolerance(float degree) {
+		if (degree <= 0 || degree >= 90)
+			throw new IllegalArgumentException("[FlexGenerator.setAngularTolerance] Tolerance must be between 0 and 90 degree.");
+		tolerance = degree;
+		radTolerance = (float) (degree*Math.PI/180);
+	}
+
+
+
+	public float getAngularTolerance() {
+		return tolerance;
+	}
+
+
+
+	public LDFlexPart getFlexPart() {
+		return flexPart;
+	}
+
+
+
+	/**
+	 * Key for generated geometry: same key gives same segments
+	 * <p>
+	 * Key covers flex type, tolerance, head and tail placement and constraints,
+	 * with coordinates rounded as in {@link ContentHash}
+	 * @param head head part transformation, relative to flex part origin
+	 * @param tail tail part transformation, relative to flex part origin
+	 * @param constraints constraint points, relative to flex part origin
+	 * @return digest string
+	 */
+	public String getKey(Matrix3D head, Matrix3D tail, List<ConnectionPoint> constraints) {
+
+		StringBuilder key = new StringBuilder();
+		key.append(flexPart.getName().toLowerCase()).append(' ').append(tolerance).append(' ');
+		ContentHash.appendMatrix(key, head);
+		ContentHash.appendMatrix(key, tail);
+		// constraint order matters
+		for (ConnectionPoint cp: constraints) {
+			ContentHash.appendPoint(key, cp.getP1());
+			ContentHash.appendPoint(key, cp.getP2());
+		}
+		return ContentHash.digest(Collections.singletonList(key.toString()));
+	}
+
+
+
+	/**
+	 * Computes transformations for mid segments
+	 * @param head head part transformation, relative to flex part origin
+	 * @param tail tail part transformation, relative to flex part origin
+	 * @param constraints constraint points, relative to flex part origin
+	 * @return transformation for every mid segment
+	 */
+	public List<Matrix3D> getMidMatrices(Matrix3D head, Matrix3D tail, List<ConnectionPoint> constraints) {
+
+		float estimate;
+		// if maxLength == 0 part doesn't have limit length
+		if (flexPart.getMaxLength() > 0) {
+			estimate = flexPart.getMaxLength();
+		}
+		else {
+			estimate = head.getOffsetPoint().vector(tail.getOffsetPoint()).modulo();
+		}
+		int resolution = Math.max(MIN_SAMPLES, (int) (estimate * SAMPLES_PER_LDU) + 1);
+		float[] p = DrawHelpers.getBezier(
+				flexPart.getStartVector().transform(head),
+				flexPart.getEndVector().transform(tail),
+				constraints,
+				flexPart.getHowRigid(),resolution);
+		p = resampleByLength(p);
+		if (flexPart.isContinue()) {
+			return getStretchedSegments(reduceByAngle(p));
+		}
+		return getFixedSegments(placeByLength(p));
+	}
+
+
+
+	/**
+	 * Resamples curve at equal arc length steps, {@link #SAMPLES_PER_LDU}
+	 * samples for every LDU of curve length
+	 * @param p curve samples, evenly spaced in curve parameter
+	 * @return curve samples, evenly spaced along curve
+	 */
+	private static float[] resampleByLength(float[] p) {
+
+		int n = p.length / 3;
+		if (n < 2)
+			return p;
+		// cumulative length at every sample
+		float[] len = new float[n];
+		for (int k=1;k<n;k++) {
+			float dx = p[k*3]-p[k*3-3], dy = p[k*3+1]-p[k*3-2], dz = p[k*3+2]-p[k*3-1];
+			len[k] = len[k-1] + (float) Math.sqrt(dx*dx+dy*dy+dz*dz);
+		}
+		float total = len[n-1];
+		if (total == 0)
+			return p;
+		int m = Math.max(MIN_SAMPLES, (int) Math.ceil(total * SAMPLES_PER_LDU) + 1);
+		float[] r = new float[m*3];
+		int k = 1;
+		for (int i=0;i<m;i++) {
+			float d = total * i / (m-1);
+			while (k < n-1 && len[k] < d) {
+				k++;
+			}
+			float seg = len[k] - len[k-1];
+			float t = seg > 0 ? Math.max(0, Math.min(1, (d-len[k-1]) / seg)) : 1;
+			r[i*3] = p[k*3-3] + t*(p[k*3]-p[k*3-3]);
+			r[i*3+1] = p[k*3-2] + t*(p[k*3+1]-p[k*3-2]);
+			r[i*3+2] = p[k*3-1] + t*(p[k*3+2]-p[k*3-1]);
+		}
+		return r;
+	}
+
+
+
+	/**
+	 * Greedy reduction in a single pass: a segment grows until its direction
+	 * differs more than tolerance from curve tangent
+	 * <p>
+	 * Chord is checked against first tangent of segment, tangent farthest
+	 * from it and last tangent, that are the extreme tangents when curve 
+	 * doesn't wind back inside a segment. Every sample is checked once.
+	 * @param p curve samples
+	 * @return segment ends
+	 */
+	private List<Point3D> reduceByAngle(float[] p) {
+
+		int n = p.length / 3;
+		List<Point3D> bz = new ArrayList<Point3D>();
+		bz.add(new Point3D(p[0],p[1],p[2]));
+		// first tangent of current segment, and tangent farthest from it
+		float fx = 0, fy = 0, fz = 0;
+		float ex = 0, ey = 0, ez = 0;
+		float farthest = 0;
+		boolean first = true;
+		// chord from segment start
+		float cx = 0, cy = 0, cz = 0;
+		for (int k=0;k<n-1;k++) {
+			float tx = p[k*3+3]-p[k*3], ty = p[k*3+4]-p[k*3+1], tz = p[k*3+5]-p[k*3+2];
+			float tl = (float) Math.sqrt(tx*tx+ty*ty+tz*tz);
+			if (tl == 0)
+				continue;
+			tx /= tl; ty /= tl; tz /= tl;
+			if (first) {
+				fx = tx; fy = ty; fz = tz;
+				ex = tx; ey = ty; ez = tz;
+				farthest = 0;
+				first = false;
+			}
+			float a = angle(fx, fy, fz, tx, ty, tz);
+			float nx = cx+tx*tl, ny = cy+ty*tl, nz = cz+tz*tl;
+			if (cx != 0 || cy != 0 || cz != 0) {
+				float ux = a > farthest ? tx : ex, uy = a > farthest ? ty : ey, uz = a > farthest ? tz : ez;
+				if (angle(fx, fy, fz, nx, ny, nz) > radTolerance 
+						|| angle(ux, uy, uz, nx, ny, nz) > radTolerance
+						|| angle(tx, ty, tz, nx, ny, nz) > radTolerance) {
+					// segment ends at sample k, next one starts with this tangent
+					bz.add(new Point3D(p[k*3],p[k*3+1],p[k*3+2]));
+					fx = tx; fy = ty; fz = tz;
+					ex = tx; ey = ty; ez = tz;
+					farthest = 0;
+					a = 0;
+					nx = tx*tl; ny = ty*tl; nz = tz*tl;
+				}
+			}
+			if (a > farthest) {
+				farthest = a;
+				ex = tx; ey = ty; ez = tz;
+			}
+			cx = nx; cy = ny; cz = nz;
+		}
+		bz.add(new Point3D(p[(n-1)*3],p[(n-1)*3+1],p[(n-1)*3+2]));
+		return bz;
+	}
+
+
+
+	/**
+	 * Angle between unit vector a and vector v, in radians
+	 */
+	private static float angle(float ax, float ay, float az, float vx, float vy, float vz) {
+
+		float vl = (float) Math.sqrt(vx*vx+vy*vy+vz*vz);
+		if (vl == 0)
+			return 0;
+		float c = (ax*vx+ay*vy+az*vz) / vl;
+		return (float) Math.acos(Math.max(-1, Math.min(1, c)));
+	}
+
+
+
+	/**
+	 * Places points along curve, every point at segment length from previous
+	 * @param p curve samples
+	 * @return segment ends
+	 */
+	private List<Point3D> placeByLength(float[] p) {
+
+		float length = JSimpleGeom.modulo(flexPart.getMidVector().getP1(),flexPart.getMidVector().getP2());
+		float step = length - flexPart.getOverlapLen();
+		float initStep = JSimpleGeom.modulo(flexPart.getMidVector().getP1(), Point3D.ORIGIN);
+		int n = p.length / 3;
+		List<Point3D> bz = new ArrayList<Point3D>();
+		float[] last = new float[] {p[0],p[1],p[2]};
+		int index = 1;
+		if (initStep > 0) {
+			// first segment starts after head part
+			index = nextAtDistance(p, index, last, initStep-flexPart.getOverlapLen());
+		}
+		bz.add(new Point3D(last[0],last[1],last[2]));
+		if (step > 0) {
+			while (index < n) {
+				index = nextAtDistance(p, index, last, step);
+				if (index >= n)
+					break;
+				bz.add(new Point3D(last[0],last[1],last[2]));
+			}
+		}
+		bz.add(new Point3D(p[(n-1)*3],p[(n-1)*3+1],p[(n-1)*3+2]));
+		return bz;
+	}
+
+
+
+	/**
+	 * Finds first point on curve after sample index at distance d from point
+	 * @param p curve samples
+	 * @param index first sample to check
+	 * @param point starting point, replaced with point found
+	 * @param d distance
+	 * @return index of sample after point found, or samples count if curve ends first
+	 */
+	private static int nextAtDistance(float[] p, int index, float[] point, float d) {
+
+		int n = p.length / 3;
+		float d2 = d*d;
+		for (int k=index;k<n;k++) {
+			float ux = p[k*3]-point[0], uy = p[k*3+1]-point[1], uz = p[k*3+2]-point[2];
+			if (ux*ux+uy*uy+uz*uz < d2)
+				continue;
+			// point is between samples k-1 and k: solves |a + t(b-a) - point| = d
+			float ax = p[k*3-3]-point[0], ay = p[k*3-2]-point[1], az = p[k*3-1]-point[2];
+			float dx = ux-ax, dy = uy-ay, dz = uz-az;
+			float dd = dx*dx+dy*dy+dz*dz;
+			float t = 1;
+			if (dd > 0) {
+				float ad = ax*dx+ay*dy+az*dz;
+				float aa = ax*ax+ay*ay+az*az;
+				float disc = ad*ad - dd*(aa-d2);
+				t = (float) ((-ad + Math.sqrt(Math.max(0, disc))) / dd);
+				t = Math.max(0, Math.min(1, t));
+			}
+			point[0] = p[k*3-3] + t*dx;
+			point[1] = p[k*3-2] + t*dy;
+			point[2] = p[k*3-1] + t*dz;
+			return k;
+		}
+		return n;
+	}
+
+
+
+	/**
+	 * Segments stretched to join points
+	 */
+	private List<Matrix3D> getStretchedSegments(List<Point3D> bz) {
+
+		List<Matrix3D> mid = new ArrayList<Matrix3D>(bz.size());
+		ConnectionPoint midv = flexPart.getMidVector().getClone(0);
+		// minimum segment length
+		float length = midv.getP1().vector(midv.getP2()).modulo();
+		Point3D dir = flexPart.getMidVector().getP1().vector(flexPart.getMidVector().getP2()).normalize();
+		Matrix3D m = new Matrix3D();
+		for (int i=0; i<bz.size()-1;i++) {
+			Point3D p1 = bz.get(i);
+			Point3D p2 = bz.get(i+1);
+			float scale = (p1.vector(p2).modulo() + flexPart.getOverlapLen()) / length;
+			Point3D scaleVector = dir.scale(scale);
+			m = m.transform(JSimpleGeom.alignMatrix(
+							midv.getP1(),midv.getP2(),p1,p2));
+			mid.add(Matrix3D.getScale(scaleVector.x==0?1:scaleVector.x,
+					scaleVector.y==0?1:scaleVector.y,
+					scaleVector.z==0?1:scaleVector.z)
+					.transform(m).moveTo(p1));
+			midv.setP1(p1);
+			midv.setP2(p2);
+		}
+		return mid;
+	}
+
+
+
+	/**
+	 * Fixed length segments between points
+	 */
+	private List<Matrix3D> getFixedSegments(List<Point3D> bz) {
+
+		List<Matrix3D> mid = new ArrayList<Matrix3D>(bz.size());
+		ConnectionPoint midv = flexPart.getMidVector().getClone(0);
+		Matrix3D m = new Matrix3D();
+		for (int i=0; i<bz.size()-1;i++) {
+			Point3D p1 = bz.get(i);
+			Point3D p2 = bz.get(i+1);
+			m = m.transform(JSimpleGeom.alignMatrix(
+					midv.getP1(),midv.getP2(),p1,p2));
+			mid.add(m.moveTo(p1));
+			midv.setP1(p1);
+			midv.setP2(p2);
+		}
+		return mid;
+	}
+
+}
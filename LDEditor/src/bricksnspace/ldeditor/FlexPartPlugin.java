@@ -27,12 +27,20 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.JButton;
+import javax.swing.SwingUtilities;
 
-import bricksnspace.j3dgeom.JSimpleGeom;
 import bricksnspace.j3dgeom.Matrix3D;
 import bricksnspace.j3dgeom.Point3D;
 import bricksnspace.ldraw3d.DrawHelpers;
@@ -69,6 +77,19 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 	
 	// counter for sub-part instance
 	private static int count = 0;
+	
+	// max generated flex parts remembered, least recently used are dropped
+	private static final int MAX_GENERATED = 256;
+	// generated flex parts, by main model ldraw id and shape key
+	private static Map<String,String> generatedFlex = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_GENERATED;
+		}
+	};
 
 	// current part
 	LDFlexPart flexPart;
@@ -82,6 +103,21 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 	// gadgets to display bezier
 	private Gadget3D currentBezier = null;
 	
+	// bezier preview computed in background, only latest request is shown
+	private static final ExecutorService previewWorker = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					
+					Thread t = new Thread(r, "FlexPreview");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	private final AtomicLong bezierRequest = new AtomicLong();
+	private Future<?> pendingBezier = null;
+	
 	// selected point marker and constraints
 	List<ConnectionPoint> constraintPoints = new ArrayList<ConnectionPoint>();
 	ConnectionPoint selectedPoint = ConnectionPoint.getDummy(new Point3D(0,0,0), new Point3D(10,0,0));
@@ -120,6 +156,23 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 	}
 	
 	
+	/**
+	 * Forgets flex parts generated for a model, when its editor is closed
+	 * @param ldrawId main model ldraw id
+	 */
+	static void forgetModel(String ldrawId) {
+		
+		String prefix = ldrawId + " ";
+		Iterator<String> i = generatedFlex.keySet().iterator();
+		while (i.hasNext()) {
+			if (i.next().startsWith(prefix)) {
+				i.remove();
+			}
+		}
+	}
+	
+	
+	
 	/**
 	 * Requires four parameter: 
 	 *  - tool panel container
@@ -168,6 +221,7 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 	@Override
 	public void reset() {
 		
+		cancelBezier();
 		if (movingHead || movingTail || addConstraint) {
 			movingHead = false;
 			movingTail = false;
@@ -191,14 +245,77 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 	
 	
 	
-	private static synchronized int getInstanceCount() {
+	/**
+	 * Shows curve from head part to end point
+	 * <p>
+	 * In background, a newer request cancels older ones and only 
+	 * latest completed curve is displayed
+	 * @param end curve end
+	 * @param background true to compute curve in preview worker
+	 */
+	private void showBezier(final ConnectionPoint end, boolean background) {
 		
-		return ++count;
+		final long request = bezierRequest.incrementAndGet();
+		if (pendingBezier != null) {
+			// superseded, drop it if not yet started
+			pendingBezier.cancel(false);
+			pendingBezier = null;
+		}
+		final ConnectionPoint start = flexPart.getStartVector().transform(headPart.getTransformation());
+		if (!background) {
+			currentBezier = DrawHelpers.getBezierGadget(start, end, constraintPoints,
+					flexPart.getHowRigid(), flexPart.getMaxLength());
+			display.addGadget(currentBezier);
+			return;
+		}
+		// worker gets its own copy of constraints
+		final List<ConnectionPoint> constraints = new ArrayList<ConnectionPoint>(constraintPoints);
+		final float rigid = flexPart.getHowRigid();
+		final float maxLength = flexPart.getMaxLength();
+		pendingBezier = previewWorker.submit(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				if (request != bezierRequest.get()) 
+					return;
+				final Gadget3D g = DrawHelpers.getBezierGadget(start, end, constraints, rigid, maxLength);
+				SwingUtilities.invokeLater(new Runnable() {
+					
+					@Override
+					public void run() {
+						
+						// shows only latest request, if still editing
+						if (request != bezierRequest.get() || !(movingTail || addConstraint)) 
+							return;
+						currentBezier = g;
+						display.addGadget(currentBezier);
+					}
+				});
+			}
+		});
 	}
-
 	
 	
-	private void renderMiddle() {
+	
+	/**
+	 * Discards any curve computing in background
+	 */
+	private void cancelBezier() {
+		
+		bezierRequest.incrementAndGet();
+		if (pendingBezier != null) {
+			pendingBezier.cancel(false);
+			pendingBezier = null;
+		}
+	}
+	
+	
+	
+	/**
+	 * Unique name for a new generated flex part
+	 */
+	private String getNewName() {
 		
 		String n = flexPart.getName().toLowerCase();
 		if (n.endsWith(".dat")) {
@@ -218,10 +335,20 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 			}
 		}
 		while (LDrawPart.existsCustomPart(name));
+		return name;
+	}
+	
+	
+	
+	private static synchronized int getInstanceCount() {
+		
+		return ++count;
+	}
+
+	
+	
+	private void renderMiddle() {
 		
-		LDrawPart flex = LDrawPart.newCustomPart(name);
-		flex.setDescription("JBrickBuilder generated flex part");
-		flex.addPart(LDPrimitive.newMetaUnk("!LDRAW_ORG Unofficial_Part"));
 		Point3D headOffset = headPart.getTransformation().getOffsetPoint();
 		Point3D tailOffset = headOffset.vector(tailPart.getTransformation().getOffsetPoint());
 		headPart = headPart.setTransform(headPart.getTransformation().getOnlyRotation());
@@ -233,137 +360,24 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 					headOffset.vector(cp.getP2())));
 		}
 		cpp = null;
-		flex.addPart(headPart.setColorIndex(LDrawColor.CURRENT));
-		flex.addPart(tailPart.setColorIndex(LDrawColor.CURRENT));
-		if (flexPart.isContinue()) {
-			// if flexpart is continue:
-			// join two or more segments to reduce part size
-			// compute vector and stretch values
-			// place place parts on bezier
-			int resolution;
-			// if maxLength == 0 part doesn't have limit length
-			if (flexPart.getMaxLength() > 0) {
-				resolution = (int) (flexPart.getMaxLength()) * 2 + 1;
-			}
-			else {
-				resolution = (int) (headPart.getTransformation().getOffsetPoint()
-						.vector(tailPart.getTransformation().getOffsetPoint()).modulo() + 1);
-			}
-			float[] p = DrawHelpers.getBezier(
-					flexPart.getStartVector().transform(headPart.getTransformation()),
-					flexPart.getEndVector().transform(tailPart.getTransformation()),
-					constraintPoints,
-					flexPart.getHowRigid(),resolution);
-			ConnectionPoint midv = flexPart.getMidVector().getClone(0);
-			// minimum segment length 
-			float length = midv.getP1().vector(midv.getP2()).modulo();
-			// reduces segment number
-			int index = 3;
-			List<Point3D> bz = new ArrayList<Point3D>();
-			bz.add(new Point3D(p[0],p[1],p[2]));
-			while (index < p.length-3) {
-				Point3D ps = new Point3D(p[index],p[index+1],p[index+2]);
-				Point3D pe = new Point3D(p[index+3],p[index+4],p[index+5]);
-				// if angle < 0.81 degree, consider two consecutive segment as one
-				if (JSimpleGeom.dotProdAngle(bz.get(bz.size()-1), ps, ps, pe) > 0.9999) {
-					index += 3;
-					continue;
-				}
-				bz.add(ps);
-				index += 3;
-			}
-			bz.add(new Point3D(p[index],p[index+1],p[index+2]));
-			Point3D p1 = new Point3D(0, 0, 0);
-			Point3D p2 = new Point3D(0, 0, 0);
-			Matrix3D m = new Matrix3D();
-			for (int i=0; i<bz.size()-1;i++) {
-				p1 = bz.get(i);
-				p2 = bz.get(i+1);
-				float scale = (p1.vector(p2).modulo() + flexPart.getOverlapLen()) / length;
-				Point3D scaleVector = flexPart.getMidVector().getP1().vector(flexPart.getMidVector().getP2())
-						.normalize().scale(scale);
-				m = m.transform(JSimpleGeom.alignMatrix(
-								midv.getP1(),midv.getP2(),p1,p2));
-				Matrix3D mv = Matrix3D.getScale(scaleVector.x==0?1:scaleVector.x,
-						scaleVector.y==0?1:scaleVector.y,
-						scaleVector.z==0?1:scaleVector.z)
-						.transform(m).moveTo(p1);
-				midv.setP1(p1);
-				midv.setP2(p2);
-				flex.addPart(LDPrimitive.newGlobalPart(flexPart.getMid(),LDrawColor.CURRENT,mv));
-			}
-		}
-		else {
-			float length = JSimpleGeom.modulo(flexPart.getMidVector().getP1(),flexPart.getMidVector().getP2());
-			int resolution;
-			// if maxLength == 0 part doesn't have limit length
-			if (flexPart.getMaxLength() > 0) {
-				resolution = (int) (flexPart.getMaxLength() / (length-flexPart.getOverlapLen())  * 5 + 1);
-			}
-			else {
-				resolution = (int) (headPart.getTransformation().getOffsetPoint()
-						.vector(tailPart.getTransformation().getOffsetPoint()).modulo() /
-						(length-flexPart.getOverlapLen()) * 5 + 1);
-			}
-			float[] p = DrawHelpers.getBezier(
-					flexPart.getStartVector().transform(headPart.getTransformation()),
-					flexPart.getEndVector().transform(tailPart.getTransformation()),
-					constraintPoints,
-					flexPart.getHowRigid(),resolution);
-			// reduces points for Bézier
-			int index = 0;
-			List<Point3D> bz = new ArrayList<Point3D>();
-			Point3D ps = new Point3D(p[0],p[1],p[2]);
-			float initStep = JSimpleGeom.modulo(flexPart.getMidVector().getP1(), Point3D.ORIGIN);
-			if (initStep > 0) { 
-				for (;;) {
-					index += 3;
-					Point3D pe = new Point3D(p[index],p[index+1],p[index+2]);
-					float l = JSimpleGeom.modulo(pe,ps);
-					// consider a segment as length as mid segment part
-					if (l < initStep) {
-						continue;
-					}
-					ps = ps.vector(pe).normalize().scale(initStep-flexPart.getOverlapLen()).translate(ps);
-					break;
-				}
-				bz.add(ps);
-			}
-			else {
-				bz.add(new Point3D(p[0],p[1],p[2]));
-			}
-			while (index < p.length) {
-				ps = new Point3D(p[index],p[index+1],p[index+2]);
-				//Point3D pe = new Point3D(p[index+3],p[index+4],p[index+5]);
-				float l = JSimpleGeom.modulo(bz.get(bz.size()-1),ps);
-				// consider a segment as length as mid segment part
-				if (l < length-flexPart.getOverlapLen()) {
-					index += 3;
-					continue;
-				}
-				ps = bz.get(bz.size()-1).vector(ps).normalize().scale(length-flexPart.getOverlapLen())
-						.translate(bz.get(bz.size()-1));
-				bz.add(ps);
-				//System.out.println(ps);
-				index += 3;
-			}
-			index -= 3;
-			bz.add(new Point3D(p[index],p[index+1],p[index+2]));
-			//System.out.println(p.length+" r:"+bz.size());
-			ConnectionPoint midv = flexPart.getMidVector().getClone(0);
-			Point3D p1 = new Point3D(0, 0, 0);
-			Point3D p2 = new Point3D(0, 0, 0);
-			Matrix3D m = new Matrix3D();
-			for (int i=0; i<bz.size()-1;i++) {
-				p1 = bz.get(i);
-				p2 = bz.get(i+1);
-				m = m.transform(JSimpleGeom.alignMatrix(
-						midv.getP1(),midv.getP2(),p1,p2));
-				Matrix3D mv = m.moveTo(p1);
-				midv.setP1(p1);
-				midv.setP2(p2);
+		FlexGenerator generator = new FlexGenerator(flexPart);
+		// same flex with same shape in same model reuses generated part
+		String key = editor.getLdrawid() + " " + generator.getKey(headPart.getTransformation(), 
+				tailPart.getTransformation(), constraintPoints);
+		String name = generatedFlex.get(key);
+		if (name == null || !LDrawPart.existsCustomPart(name)) {
+			name = getNewName();
+			LDrawPart flex = LDrawPart.newCustomPart(name);
+			flex.setDescription("JBrickBuilder generated flex part");
+			flex.addPart(LDPrimitive.newMetaUnk("!LDRAW_ORG Unofficial_Part"));
+			flex.addPart(headPart.setColorIndex(LDrawColor.CURRENT));
+			flex.addPart(tailPart.setColorIndex(LDrawColor.CURRENT));
+			// mid segments placed along curve
+			for (Matrix3D mv: generator.getMidMatrices(headPart.getTransformation(), 
+					tailPart.getTransformation(), constraintPoints)) {
 				flex.addPart(LDPrimitive.newGlobalPart(flexPart.getMid(),LDrawColor.CURRENT,mv));
 			}
+			generatedFlex.put(key, name);
 		}
 		LDPrimitive p = LDPrimitive.newGlobalPart(name, colorIndex, new Matrix3D().moveTo(headOffset));
 		undo.startUndoRecord();
@@ -426,12 +440,7 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 				movingTail = false;
 				addConstraint = true;
 				tailPart = currentPart;
-				currentBezier = DrawHelpers.getBezierGadget(
-						flexPart.getStartVector().transform(headPart.getTransformation()),
-						flexPart.getEndVector().transform(tailPart.getTransformation()),
-						constraintPoints,
-						flexPart.getHowRigid(), flexPart.getMaxLength());
-				display.addGadget(currentBezier);
+				showBezier(flexPart.getEndVector().transform(tailPart.getTransformation()), false);
 				//display.removeGadget(currentBezier.getId());
 				currPartRendered = LDRenderedPart.newRenderedPart(currentPart);
 				display.removeGadget(DrawHelpers.FLEXPOINT);
@@ -448,12 +457,7 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 			else {
 				constraintPoints.add(selectedPoint.transform(dh.getCurrentMatrix()).fastMove(prevCursor));
 			}
-			currentBezier = DrawHelpers.getBezierGadget(
-					flexPart.getStartVector().transform(headPart.getTransformation()),
-					flexPart.getEndVector().transform(tailPart.getTransformation()),
-					constraintPoints,
-					flexPart.getHowRigid(), flexPart.getMaxLength());
-			display.addGadget(currentBezier);
+			showBezier(flexPart.getEndVector().transform(tailPart.getTransformation()), false);
 			if (constraintPoints.size() > 0)
 				delConstraint.setEnabled(true);
 		}
@@ -487,13 +491,9 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 								LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor()));
 			}
 			if (movingTail) {
-				currentBezier = DrawHelpers.getBezierGadget(
-						flexPart.getStartVector().transform(headPart.getTransformation()),
-						flexPart.getEndVector().transform(currentPart.getTransformation().moveTo(
-								LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor())),
-						constraintPoints,
-						flexPart.getHowRigid(), flexPart.getMaxLength());
-				display.addGadget(currentBezier);
+				// curve follows cursor, computed in background
+				showBezier(flexPart.getEndVector().transform(currentPart.getTransformation().moveTo(
+						LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor())), true);
 				display.addGadget(DrawHelpers.getFlexPoint(flexPart.getEndVector()
 						.transform(currentPart.getTransformation())).fastMove(
 								LDEditor.isAutoconnect()?connHandler.getLastConn():editor.getCursor()));
@@ -596,16 +596,12 @@ public class FlexPartPlugin implements LDEditorPlugin, ActionListener {
 		
 		if (e.getSource() == delConstraint) {
 			constraintPoints.remove(constraintPoints.size()-1);
-			currentBezier = DrawHelpers.getBezierGadget(
-					flexPart.getStartVector().transform(headPart.getTransformation()),
-					flexPart.getEndVector().transform(tailPart.getTransformation()),
-					constraintPoints,
-					flexPart.getHowRigid(), flexPart.getMaxLength());
-			display.addGadget(currentBezier);
+			showBezier(flexPart.getEndVector().transform(tailPart.getTransformation()), false);
 			if (constraintPoints.size() == 0)
 				delConstraint.setEnabled(false);
 		}
 		else if (e.getSource() == endEdit) {
+			cancelBezier();
 			renderMiddle();
 			display.removeGadget(DrawHelpers.FLEXPOINT);
 			display.removeGadget(DrawHelpers.BEZIER);
@@ -0,0 +1,400 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.j3dgeom.Point3D;
+import bricksnspace.ldrawlib.ConnectionHandler;
+import bricksnspace.ldrawlib.ConnectionPoint;
+import bricksnspace.ldrawlib.PartQueryable;
+
+
+/**
+ * Autoconnect for a group of moving parts
+ * <p>
+ * All connection points of moving parts are matched against nearby
+ * connection points of still parts. Every match gives a candidate offset
+ * for the whole group, candidates are scored in parallel counting how many
+ * moving points fall on a still point of opposite type (i.e. stud on antistud)
+ * with a parallel axis. Only nearest candidates are scored. Best candidate wins.
+ * <p>
+ * Still points are indexed once, when group starts moving.
+ * Group rotation is kept as is, only translation is searched.
+ *
+ */
+public class GroupConnector {
+
+	// max distance to search for a connection, in LDU
+	private static final float SEARCH_RADIUS = 8;
+	// tolerance for two points to be coincident, 1/4 LDU
+	private static final float MATCH_QUANT = 4;
+	// cosine of max angle between two parallel axis
+	private static final float PARALLEL = 0.99f;
+	// limits number of candidates to score
+	private static final int MAX_CANDIDATES = 256;
+	// below this work size (points x candidates) scoring is sequential
+	private static final int PARALLEL_WORK = 4096;
+	// candidates for every parallel task
+	private static final int TASK_CANDIDATES = 8;
+
+	private static final ForkJoinPool connectPool = new ForkJoinPool();
+
+	// moving points, relative to group center
+	private final int movingCount;
+	private final float[] movingPos;
+	private final float[] movingDir;
+	// type that can connect to every moving point
+	private final int[] movingOpposite;
+	// moving points, at current group position
+	private final float[] worldPos;
+	private final float[] worldDir;
+
+	// still points
+	private final float[] stillPos;
+	private final float[] stillDir;
+	private final int[] stillType;
+	private final int[] stillPart;
+	// index of still points, coarse cells for search
+	private final Map<Long,List<Integer>> searchGrid = new HashMap<Long, List<Integer>>();
+	// index of still points, fine cells for match
+	private final Map<Long,List<Integer>> matchGrid = new HashMap<Long, List<Integer>>();
+
+	private final float[] matrix = new float[12];
+
+	// result of last alignment
+	private Point3D offset = null;
+	private int targetPartId = 0;
+	private int matches = 0;
+
+
+
+	/**
+	 * Indexes connection points for a moving group
+	 * @param ch connection handler for model
+	 * @param moving ids of moving parts
+	 * @param query to skip hidden parts
+	 * @param center group center, in model coordinates
+	 */
+	public GroupConnector(ConnectionHandler ch, Set<Integer> moving, PartQueryable query, Point3D center) {
+
+		if (ch == null || moving == null || query == null || center == null)
+			throw new IllegalArgumentException("[GroupConnector] All parameters must be not null.");
+		List<ConnectionPoint> mov = new ArrayList<ConnectionPoint>();
+		List<ConnectionPoint> still = new ArrayList<ConnectionPoint>();
+		for (ConnectionPoint cp: ch.getConnectionList()) {
+			if (moving.contains(cp.getPartId())) {
+				mov.add(cp);
+			}
+			else if (!query.isHidden(cp.getPartId())) {
+				still.add(cp);
+			}
+		}
+		movingCount = mov.size();
+		movingPos = new float[movingCount*3];
+		movingDir = new float[movingCount*3];
+		movingOpposite = new int[movingCount];
+		worldPos = new float[movingCount*3];
+		worldDir = new float[movingCount*3];
+		for (int i=0;i<movingCount;i++) {
+			ConnectionPoint cp = mov.get(i);
+			setPoint(movingPos, movingDir, i, cp);
+			movingPos[i*3] -= center.x;
+			movingPos[i*3+1] -= center.y;
+			movingPos[i*3+2] -= center.z;
+			movingOpposite[i] = cp.getType().getOpposite();
+		}
+		stillPos = new float[still.size()*3];
+		stillDir = new float[still.size()*3];
+		stillType = new int[still.size()];
+		stillPart = new int[still.size()];
+		for (int i=0;i<still.size();i++) {
+			ConnectionPoint cp = still.get(i);
+			setPoint(stillPos, stillDir, i, cp);
+			stillType[i] = cp.getType().getId();
+			stillPart[i] = cp.getPartId();
+			addToGrid(searchGrid, cellKey(stillPos, i*3, 1/SEARCH_RADIUS, 0, 0, 0), i);
+			addToGrid(matchGrid, cellKey(stillPos, i*3, MATCH_QUANT, 0, 0, 0), i);
+		}
+	}
+
+
+
+	private static void setPoint(float[] pos, float[] dir, int i, ConnectionPoint cp) {
+
+		Point3D p1 = cp.getP1();
+		Point3D p2 = cp.getP2();
+		pos[i*3] = p1.x;
+		pos[i*3+1] = p1.y;
+		pos[i*3+2] = p1.z;
+		float dx = p2.x-p1.x, dy = p2.y-p1.y, dz = p2.z-p1.z;
+		float l = (float) Math.sqrt(dx*dx+dy*dy+dz*dz);
+		if (l > 0) {
+			dir[i*3] = dx/l;
+			dir[i*3+1] = dy/l;
+			dir[i*3+2] = dz/l;
+		}
+	}
+
+
+
+	private static void addToGrid(Map<Long,List<Integer>> grid, long key, int i) {
+
+		List<Integer> l = grid.get(key);
+		if (l == null) {
+			l = new ArrayList<Integer>(2);
+			grid.put(key, l);
+		}
+		l.add(i);
+	}
+
+
+
+	/**
+	 * Cell key of a point plus an offset
+	 * @param p coordinate array
+	 * @param off index in array
+	 * @param scale cells for every LDU
+	 */
+	private static long cellKey(float[] p, int off, float scale, float dx, float dy, float dz) {
+
+		long ix = Math.round((p[off]+dx)*scale);
+		long iy = Math.round((p[off+1]+dy)*scale);
+		long iz = Math.round((p[off+2]+dz)*scale);
+		return cellKey(ix, iy, iz);
+	}
+
+
+
+	private static long cellKey(long ix, long iy, long iz) {
+
+		return ((ix & 0x1fffff) << 42) | ((iy & 0x1fffff) << 21) | (iz & 0x1fffff);
+	}
+
+
+
+	/**
+	 * Two connection points can match: still point has the type opposite
+	 * to moving one, as in connection handler, and axis are parallel
+	 */
+	private boolean compatible(int m, int s) {
+
+		if (movingOpposite[m] != stillType[s])
+			return false;
+		float dot = worldDir[m*3]*stillDir[s*3] + worldDir[m*3+1]*stillDir[s*3+1]
+				+ worldDir[m*3+2]*stillDir[s*3+2];
+		boolean noAxis = (stillDir[s*3] == 0 && stillDir[s*3+1] == 0 && stillDir[s*3+2] == 0)
+				|| (worldDir[m*3] == 0 && worldDir[m*3+1] == 0 && worldDir[m*3+2] == 0);
+		return noAxis || Math.abs(dot) > PARALLEL;
+	}
+
+
+
+	/**
+	 * Searches best alignment for group placed with transformation t
+	 * @param t group transformation, rotation and position of group center
+	 * @return true if an alignment is found
+	 */
+	public boolean align(Matrix3D t) {
+
+		offset = null;
+		targetPartId = 0;
+		matches = 0;
+		if (movingCount == 0 || stillPart.length == 0)
+			return false;
+		ContentHash.matrixValues(t, matrix, 0);
+		for (int i=0;i<movingCount;i++) {
+			int o = i*3;
+			float x = movingPos[o], y = movingPos[o+1], z = movingPos[o+2];
+			worldPos[o] = matrix[3]*x + matrix[4]*y + matrix[5]*z + matrix[0];
+			worldPos[o+1] = matrix[6]*x + matrix[7]*y + matrix[8]*z + matrix[1];
+			worldPos[o+2] = matrix[9]*x + matrix[10]*y + matrix[11]*z + matrix[2];
+			x = movingDir[o]; y = movingDir[o+1]; z = movingDir[o+2];
+			worldDir[o] = matrix[3]*x + matrix[4]*y + matrix[5]*z;
+			worldDir[o+1] = matrix[6]*x + matrix[7]*y + matrix[8]*z;
+			worldDir[o+2] = matrix[9]*x + matrix[10]*y + matrix[11]*z;
+		}
+		// candidates: every near compatible pair gives an offset
+		Map<Long,float[]> candidates = new HashMap<Long, float[]>();
+		float r2 = SEARCH_RADIUS*SEARCH_RADIUS;
+		float[] d = new float[3];
+		for (int i=0;i<movingCount;i++) {
+			int o = i*3;
+			long cx = Math.round(worldPos[o]/SEARCH_RADIUS);
+			long cy = Math.round(worldPos[o+1]/SEARCH_RADIUS);
+			long cz = Math.round(worldPos[o+2]/SEARCH_RADIUS);
+			for (long ix=cx-1;ix<=cx+1;ix++) {
+				for (long iy=cy-1;iy<=cy+1;iy++) {
+					for (long iz=cz-1;iz<=cz+1;iz++) {
+						List<Integer> cell = searchGrid.get(cellKey(ix, iy, iz));
+						if (cell == null)
+							continue;
+						for (int s: cell) {
+							d[0] = stillPos[s*3] - worldPos[o];
+							d[1] = stillPos[s*3+1] - worldPos[o+1];
+							d[2] = stillPos[s*3+2] - worldPos[o+2];
+							if (d[0]*d[0]+d[1]*d[1]+d[2]*d[2] > r2 || !compatible(i, s))
+								continue;
+							long key = cellKey(d, 0, MATCH_QUANT, 0, 0, 0);
+							if (!candidates.containsKey(key)) {
+								// fourth value is squared distance, for ranking
+								candidates.put(key, new float[] {d[0],d[1],d[2],d[0]*d[0]+d[1]*d[1]+d[2]*d[2]});
+							}
+						}
+					}
+				}
+			}
+		}
+		if (candidates.size() == 0)
+			return false;
+		List<float[]> offsets = new ArrayList<float[]>(candidates.values());
+		if (offsets.size() > MAX_CANDIDATES) {
+			// nearest offsets first, far ones are dropped
+			Collections.sort(offsets, new Comparator<float[]>() {
+
+				@Override
+				public int compare(float[] a, float[] b) {
+					return Float.compare(a[3], b[3]);
+				}
+			});
+			offsets = new ArrayList<float[]>(offsets.subList(0, MAX_CANDIDATES));
+		}
+		int[] score = new int[offsets.size()];
+		int[] target = new int[offsets.size()];
+		ScoreTask task = new ScoreTask(offsets, score, target, 0, offsets.size());
+		if (movingCount * offsets.size() < PARALLEL_WORK) {
+			task.compute();
+		}
+		else {
+			connectPool.invoke(task);
+		}
+		// best score, on tie the nearest one
+		int best = -1;
+		float bestLen = 0;
+		for (int c=0;c<offsets.size();c++) {
+			float[] off = offsets.get(c);
+			float len = off[0]*off[0]+off[1]*off[1]+off[2]*off[2];
+			if (score[c] > 0 && (best < 0 || score[c] > score[best]
+					|| (score[c] == score[best] && len < bestLen))) {
+				best = c;
+				bestLen = len;
+			}
+		}
+		if (best < 0)
+			return false;
+		float[] off = offsets.get(best);
+		offset = new Point3D(off[0], off[1], off[2]);
+		targetPartId = stillPart[target[best]];
+		matches = score[best];
+		return true;
+	}
+
+
+
+	/**
+	 * Counts moving points that match a still point, for a range of candidate offsets
+	 */
+	private class ScoreTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<float[]> offsets;
+		private final int[] score;
+		private final int[] target;
+		private final int from;
+		private final int to;
+
+		ScoreTask(List<float[]> offsets, int[] score, int[] target, int from, int to) {
+			this.offsets = offsets;
+			this.score = score;
+			this.target = target;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from > TASK_CANDIDATES && getPool() != null) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ScoreTask(offsets, score, target, from, mid),
+						new ScoreTask(offsets, score, target, mid, to));
+				return;
+			}
+			for (int c=from;c<to;c++) {
+				float[] off = offsets.get(c);
+				int count = 0;
+				for (int i=0;i<movingCount;i++) {
+					List<Integer> cell = matchGrid.get(cellKey(worldPos, i*3, MATCH_QUANT, off[0], off[1], off[2]));
+					if (cell == null)
+						continue;
+					for (int s: cell) {
+						if (compatible(i, s)) {
+							count++;
+							target[c] = s;
+							break;
+						}
+					}
+				}
+				score[c] = count;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Offset to add to group position, from last alignment
+	 * @return offset or null if no alignment found
+	 */
+	public Point3D getOffset() {
+		return offset;
+	}
+
+
+
+	/**
+	 * Global id of a part connected to group, from last alignment
+	 * @return part id or 0
+	 */
+	public int getTargetPartId() {
+		return targetPartId;
+	}
+
+
+
+	/**
+	 * Number of connection points matched in last alignment
+	 */
+	public int getMatches() {
+		return matches;
+	}
+
+}
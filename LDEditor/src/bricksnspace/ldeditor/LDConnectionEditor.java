@@ -105,6 +105,9 @@ public class LDConnectionEditor implements Runnable, UncaughtExceptionHandler,
 	// drawing helper
 	private DrawHelpers dh;
 	
+	// input filter, collapses mouse moves to display frame rate
+	private MoveCoalescer<LDConnectionEditor> input;
+	
 	// undo subsystem
 	private Undo<ConnectionPoint> undo;
 	
@@ -146,8 +149,9 @@ public class LDConnectionEditor implements Runnable, UncaughtExceptionHandler,
 		dh.enableAxis(axisEnabled);
 		dh.enableGrid(gridEnabled);
 		display.enableSelection(true);
-		display.addPickListener(this);
-		display.getCanvas().addKeyListener(this);
+		input = new MoveCoalescer<LDConnectionEditor>(this);
+		display.addPickListener(input);
+		display.getCanvas().addKeyListener(input);
 		displayConnections();
 	}
 	
@@ -167,8 +171,9 @@ public class LDConnectionEditor implements Runnable, UncaughtExceptionHandler,
 		mainModel = null;
 		connHandler = null;
 		dh = null;
-		display.getCanvas().removeKeyListener(this);
-		display.removePickListener(this);
+		input.discard();
+		display.getCanvas().removeKeyListener(input);
+		display.removePickListener(input);
 	}
 	
 	
@@ -21,21 +21,37 @@
 package bricksnspace.ldeditor;
 
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.io.File;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
 import bricksnspace.j3dgeom.JSimpleGeom;
 import bricksnspace.j3dgeom.Matrix3D;
 import bricksnspace.j3dgeom.Point3D;
@@ -77,6 +93,7 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	public static final String FLEXPLUGIN = "Flex";
 	public static final String STEPPLUGIN = "Step";
 	public static final String DRAGPLUGIN = "Drag";
+	public static final String ARRAYPLUGIN = "Array";
 	
 	// plugin list
 	private Map<String,LDEditorPlugin> plugins = new HashMap<String, LDEditorPlugin>();
@@ -104,25 +121,77 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	private static float gridSize = 20;
 	private static float rotateStep = (float) (Math.PI/2);
 	private static int currentColor = LDrawColor.RED;
+	private static int dragProxyThreshold = 500;
+	private static int autosaveInterval = 5;
 	
-	// display feedback
-	private Point3D prevCursor = new Point3D(0,0,0);
+	// display feedback, cursor is updated in place
+	private final Point3D prevCursor = new Point3D(0,0,0);
+	// minimum cursor displacement to notify a move
+	private static final float CURSOR_EPSILON = 0.001f;
 	
-	// cut/copy/paste handling
-	private final static String savedPartName = "__internal_cutpaste__";
+	// cut/copy/paste handling, every editor has its own clipboard
+	// clipboard keeps references to original primitives, that are immutable, 
+	// and a transformation to move them around their center
+	private List<LDPrimitive> clipboard = new ArrayList<LDPrimitive>();
+	private Matrix3D clipboardOrigin = new Matrix3D();
 	
 	// drawing helper
 	private DrawHelpers dh;
 	
+	// input filter, collapses mouse moves to display frame rate
+	private MoveCoalescer<LDEditor> input;
+	
 	// undo subsystem
 	private Undo<LDPrimitive> undo;
 	
+	// submodel explode
+	private static final int MAX_EXPLODE_DEPTH = 64;
+	private static final ForkJoinPool explodePool = new ForkJoinPool();
+	// background saves, one at a time in request order. Thread isn't a daemon, 
+	// so a save in progress completes even if application is closing
+	private static final ExecutorService saveWorker;
+	static {
+		ThreadPoolExecutor ex = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "SaveTask");
+					}
+				});
+		// idle thread ends, so it doesn't keep application running
+		ex.allowCoreThreadTimeOut(true);
+		saveWorker = ex;
+	}
+	
+	// saved blocks, by content hash
+	private static Map<String,String> savedBlocks = new HashMap<String, String>();
+	
 	// editor generated subparts/submodels
 	private static Set<String> unsavedParts = new HashSet<String>();
+	// unsaved submodel -> serial of its last registration
+	private static Map<String,Long> unsavedSerials = new HashMap<String, Long>();
+	private static long registerSerial = 0;
 	
 	// selecting and hiding
 	private Set<Integer> selectedParts = new HashSet<Integer>();
 	private Set<Integer> hiddenParts = new HashSet<Integer>();
+	// parts hidden while dragged, they stay in model
+	private Set<Integer> draggedParts = new HashSet<Integer>();
+	// step highlighted by step editor, parts after it are dimmed, -1 if none
+	private int highlightedStep = -1;
+	// step for every part, built on first use and dropped when parts are added
+	private StepIndex stepIndex = null;
+	// counts model changes, used only in event thread
+	private long editSerial = 0;
+	// autosave
+	private Timer autosaveTimer = null;
+	private File autosaveDir = null;
+	private long autosavedSerial = -1;
+	// submodels added or replaced by this editor since last autosave
+	private Set<String> autosaveDirty = new HashSet<String>();
+	// autosave file -> content digest at last autosave, used only in save worker
+	private Map<File,String> autosavedParts = new HashMap<File, String>();
 
 
 	
@@ -150,8 +219,9 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 		dh.enableGrid(gridEnabled);
 		gldisplay.enableHover();
 		gldisplay.enableSelection(true);
-		display.addPickListener(this);
-		display.getCanvas().addKeyListener(this);
+		input = new MoveCoalescer<LDEditor>(this);
+		display.addPickListener(input);
+		display.getCanvas().addKeyListener(input);
 		// register known plugins
 		plugins.put(ADDPLUGIN, new AddPartModePlugin(this, dh, connHandler, undo, display));
 		plugins.put(DUPPLUGIN, new DuplicatePartModePlugin(this, dh, connHandler, undo, display));
@@ -161,6 +231,7 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 		plugins.put(FLEXPLUGIN, new FlexPartPlugin(this, dh, connHandler, undo, display));
 		plugins.put(STEPPLUGIN, new BuildStepPlugin(this, dh, connHandler, undo, display));
 		plugins.put(DRAGPLUGIN, new DragPartModePlugin(this, dh, connHandler, undo, display));
+		plugins.put(ARRAYPLUGIN, new ArrayPartModePlugin(this, dh, connHandler, undo, display));
 	}
 	
 	
@@ -175,13 +246,18 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	
 	public void closeEditor() {
 		
+		stopAutosave();
 		resetCurrentAction();
+		if (mainModel != null) {
+			FlexPartPlugin.forgetModel(mainModel.getLdrawId());
+		}
 		undo = null;
 		mainModel = null;
 		connHandler = null;
 		dh = null;
-		display.getCanvas().removeKeyListener(this);
-		display.removePickListener(this);
+		input.discard();
+		display.getCanvas().removeKeyListener(input);
+		display.removePickListener(input);
 		plugins.clear();
 		plugins = null;
 	}
@@ -308,6 +384,50 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 
 
 
+	/**
+	 * Part count above which dragged parts are previewed with simplified boxes
+	 * @return number of parts
+	 */
+	public static int getDragProxyThreshold() {
+		return dragProxyThreshold;
+	}
+
+
+
+	/**
+	 * Sets part count above which dragged parts are previewed with simplified boxes
+	 * @param threshold number of parts, 0 to always use boxes
+	 */
+	public static void setDragProxyThreshold(int threshold) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("[LDEditor.setDragProxyThreshold] Threshold must be 0 or greater.");
+		dragProxyThreshold = threshold;
+	}
+
+
+
+	/**
+	 * Time between autosaves
+	 * @return interval in minutes
+	 */
+	public static int getAutosaveInterval() {
+		return autosaveInterval;
+	}
+
+
+
+	/**
+	 * Sets time between autosaves, used by editors that start autosave after this call
+	 * @param minutes interval in minutes
+	 */
+	public static void setAutosaveInterval(int minutes) {
+		if (minutes < 1)
+			throw new IllegalArgumentException("[LDEditor.setAutosaveInterval] Interval must be greater than 0.");
+		autosaveInterval = minutes;
+	}
+
+
+
 
 	
 	
@@ -522,6 +642,350 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	public void saveAsMpd(File f) throws IOException {
 		mainModel.saveAsMpd(f);
 	}
+	
+	
+	
+	/**
+	 * Saves model and its submodels in compact binary format
+	 * @param f file to write
+	 * @throws IOException
+	 * @see BinaryModel
+	 */
+	public void saveAsBinary(File f) throws IOException {
+		BinaryModel.save(mainModel, f);
+	}
+	
+	
+	
+	/**
+	 * Loads a model saved in binary format and opens an editor on it
+	 * <p>
+	 * Model is ready to render with {@link #getRenderTask(ProgressUpdater)}
+	 * @param f binary model file
+	 * @param gld display for editor
+	 * @return new editor
+	 * @throws IOException if file can't be read or isn't a binary model
+	 */
+	public static LDEditor openBinary(File f, LDrawGLDisplay gld) throws IOException {
+		
+		return newLDModelEditor(BinaryModel.load(f), gld);
+	}
+	
+	
+	
+	/**
+	 * Loads an MPD file parsing its submodels concurrently, and opens an editor on it
+	 * @param f MPD or LDR file
+	 * @param gld display for editor
+	 * @return new editor
+	 * @throws IOException if file can't be read or parsed
+	 * @see MpdLoader
+	 */
+	public static LDEditor openMpd(File f, LDrawGLDisplay gld) throws IOException {
+		
+		return newLDModelEditor(MpdLoader.load(f, Runtime.getRuntime().availableProcessors()), gld);
+	}
+	
+	
+	
+	/**
+	 * Saves model as LDR in background, editing can continue
+	 * <p>
+	 * A copy of model is saved. If model isn't changed while saving,
+	 * it is marked as saved when save completes without errors
+	 * @param f file to write
+	 * @param l listener for save result, can be null
+	 */
+	public void saveAsLdrInBackground(File f, SaveListener l) {
+		
+		saveInBackground(f, false, l);
+	}
+	
+	
+	
+	/**
+	 * Saves model and its submodels as MPD in background, editing can continue
+	 * <p>
+	 * Main model and all submodels it uses are copied before saving. 
+	 * If model isn't changed while saving, it is marked as saved when 
+	 * save completes without errors
+	 * @param f file to write
+	 * @param l listener for save result, can be null
+	 */
+	public void saveAsMpdInBackground(File f, SaveListener l) {
+		
+		saveInBackground(f, true, l);
+	}
+	
+	
+	
+	private void saveInBackground(final File f, final boolean mpd, final SaveListener l) {
+		
+		if (f == null)
+			throw new IllegalArgumentException("[LDEditor.saveInBackground] File must be not null.");
+		// primitives are immutable, copies share them
+		final List<LDrawPart> snapshot;
+		if (mpd) {
+			snapshot = copyModelTree(mainModel);
+		}
+		else {
+			snapshot = Collections.singletonList(mainModel.getCopy());
+		}
+		final long serial = editSerial;
+		final String ldrawId = mainModel.getLdrawId();
+		// submodels written by this save, with their registration serial
+		final Map<String,Long> written = new HashMap<String, Long>();
+		for (LDrawPart m: snapshot) {
+			Long reg = unsavedSerials.get(m.getLdrawId());
+			if (reg != null) {
+				written.put(m.getLdrawId(), reg);
+			}
+		}
+		saveWorker.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				IOException error = null;
+				try {
+					if (mpd) {
+						MpdWriter.write(snapshot, f);
+					}
+					else {
+						writeLdr(snapshot.get(0), f);
+					}
+				}
+				catch (IOException e) {
+					error = e;
+				}
+				final IOException result = error;
+				SwingUtilities.invokeLater(new Runnable() {
+					
+					@Override
+					public void run() {
+						
+						if (result != null) {
+							Logger.getGlobal().log(Level.WARNING, "[LDEditor] Unable to save "+f, result);
+							if (l != null) {
+								l.saveFailed(f, result);
+							}
+							return;
+						}
+						if (mpd) {
+							// submodels registered again while saving are still unsaved
+							for (Map.Entry<String,Long> w: written.entrySet()) {
+								if (w.getValue().equals(unsavedSerials.get(w.getKey()))) {
+									savedPart(w.getKey());
+								}
+							}
+						}
+						else {
+							savedPart(ldrawId);
+						}
+						if (mainModel != null && serial == editSerial) {
+							markSave();
+							if (listener != null) {
+								listener.modifiedNotification(undo.isModified());
+							}
+						}
+						if (l != null) {
+							l.saveCompleted(f);
+						}
+					}
+				});
+			}
+		});
+	}
+
+
+
+	/**
+	 * Copies a model and all submodels it uses, in event thread
+	 * <p>
+	 * Copies are detached from part library, so they can be saved
+	 * in background while library changes
+	 * @param model main model
+	 * @return model copy first, then submodel copies in reference order
+	 */
+	private static List<LDrawPart> copyModelTree(LDrawPart model) {
+		
+		List<LDrawPart> models = new ArrayList<LDrawPart>();
+		Set<String> seen = new HashSet<String>();
+		models.add(model.getCopy());
+		if (model.getLdrawId() != null) {
+			seen.add(model.getLdrawId().toLowerCase());
+		}
+		for (int i=0;i<models.size();i++) {
+			for (LDPrimitive p: models.get(i).getPrimitives()) {
+				if (p.getType() == LDrawCommand.REFERENCE && LDrawPart.existsCustomPart(p.getLdrawId())
+						&& seen.add(p.getLdrawId().toLowerCase())) {
+					models.add(LDrawPart.getPart(p.getLdrawId()).getCopy());
+				}
+			}
+		}
+		return models;
+	}
+	
+	
+	
+	/**
+	 * Saves a model copy as LDR through a temporary file in same directory,
+	 * so a failed save leaves previous file as it was
+	 */
+	private static void writeLdr(LDrawPart model, File f) throws IOException {
+		
+		File tmp = File.createTempFile("ldeditor", ".tmp", f.getAbsoluteFile().getParentFile());
+		boolean done = false;
+		try {
+			model.saveAsLdr(tmp);
+			try {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, 
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			done = true;
+		}
+		finally {
+			if (!done && !tmp.delete()) {
+				tmp.deleteOnExit();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Starts periodic autosave to a directory
+	 * <p>
+	 * Every autosave writes main model only if it was changed since last autosave,
+	 * and submodels not yet saved only if this editor replaced them and their content 
+	 * is changed. Files are written in background, with same name as model or submodel.
+	 * @param dir autosave directory, created if needed
+	 */
+	public void startAutosave(File dir) {
+		
+		if (dir == null)
+			throw new IllegalArgumentException("[LDEditor.startAutosave] Directory must be not null.");
+		stopAutosave();
+		autosaveDir = dir;
+		autosavedSerial = -1;
+		autosaveDirty.addAll(unsavedParts);
+		autosaveTimer = new Timer(autosaveInterval*60000, new ActionListener() {
+			
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				autosave();
+			}
+		});
+		autosaveTimer.start();
+	}
+	
+	
+	
+	public void stopAutosave() {
+		
+		if (autosaveTimer != null) {
+			autosaveTimer.stop();
+			autosaveTimer = null;
+		}
+	}
+	
+	
+	
+	public File getAutosaveDir() {
+		return autosaveDir;
+	}
+	
+	
+	
+	/**
+	 * Writes changed models to autosave directory
+	 * <p>
+	 * Runs in event thread, but only copies changed models: content 
+	 * check and writing are done in save worker
+	 */
+	private void autosave() {
+		
+		if (mainModel == null)
+			return;
+		final LDrawPart main;
+		if (editSerial != autosavedSerial) {
+			main = mainModel.getCopy();
+			autosavedSerial = editSerial;
+		}
+		else {
+			main = null;
+		}
+		// primitives are immutable, copies share them
+		final Map<String,LDrawPart> subs = new HashMap<String, LDrawPart>();
+		for (String name: autosaveDirty) {
+			if (name.equals(mainModel.getLdrawId()) || !unsavedParts.contains(name) 
+					|| !LDrawPart.existsCustomPart(name))
+				continue;
+			subs.put(name, LDrawPart.getPart(name).getCopy());
+		}
+		autosaveDirty.clear();
+		if (main == null && subs.size() == 0)
+			return;
+		final File dir = autosaveDir;
+		final String mainId = mainModel.getLdrawId();
+		saveWorker.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				if (!dir.isDirectory() && !dir.mkdirs()) {
+					Logger.getGlobal().warning("[LDEditor] Unable to create autosave directory "+dir);
+					return;
+				}
+				Map<File,LDrawPart> toWrite = new HashMap<File, LDrawPart>();
+				if (main != null) {
+					toWrite.put(autosaveFile(dir, mainId), main);
+				}
+				for (Map.Entry<String,LDrawPart> sub: subs.entrySet()) {
+					// order and steps are content too
+					LDrawPart m = sub.getValue();
+					List<String> keys = new ArrayList<String>();
+					for (int s=0;s<=m.getNumSteps();s++) {
+						for (LDPrimitive p: m.getPartsInStep(s)) {
+							keys.add(s+" "+ContentHash.primitiveKey(p));
+						}
+					}
+					String digest = ContentHash.orderedDigest(keys);
+					File f = autosaveFile(dir, sub.getKey());
+					if (digest.equals(autosavedParts.get(f)))
+						continue;
+					autosavedParts.put(f, digest);
+					toWrite.put(f, m);
+				}
+				for (Map.Entry<File,LDrawPart> m: toWrite.entrySet()) {
+					try {
+						m.getValue().saveAsLdr(m.getKey());
+					}
+					catch (IOException e) {
+						Logger.getGlobal().log(Level.WARNING, "[LDEditor] Autosave failed for "+m.getKey(), e);
+					}
+				}
+			}
+		});
+	}
+	
+	
+	
+	/**
+	 * Autosave file for a model, name is made safe for file system
+	 */
+	private static File autosaveFile(File dir, String ldrawId) {
+		
+		String name = ldrawId == null || ldrawId.length() == 0 ? "model.ldr" : ldrawId;
+		name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+		if (name.indexOf('.') < 0) {
+			name += ".ldr";
+		}
+		return new File(dir, name);
+	}
 
 
 
@@ -540,6 +1004,7 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	 * @see bricksnspace.ldrawlib.LDrawPart#setPartName(java.lang.String)
 	 */
 	public void setPartName(String partName) {
+		editSerial++;
 		mainModel.setPartName(partName);
 	}
 
@@ -560,6 +1025,7 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	 * @see bricksnspace.ldrawlib.LDrawPart#setAuthor(java.lang.String)
 	 */
 	public void setAuthor(String author) {
+		editSerial++;
 		mainModel.setAuthor(author);
 	}
 
@@ -590,6 +1056,7 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	 * @see bricksnspace.ldrawlib.LDrawPart#setPartType(bricksnspace.ldrawlib.LDrawPartType)
 	 */
 	public void setPartType(LDrawPartType partType) {
+		editSerial++;
 		mainModel.setPartType(partType);
 	}
 
@@ -597,6 +1064,7 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 
 
 	public void setLicense(String license) {
+		editSerial++;
 		mainModel.setLicense(license);
 	}
 
@@ -607,6 +1075,7 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	 * @see bricksnspace.ldrawlib.LDrawPart#setDescription(java.lang.String)
 	 */
 	public void setDescription(String parseDescription) {
+		editSerial++;
 		mainModel.setDescription(parseDescription);
 	}
 
@@ -645,7 +1114,9 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	 */
 	public LDPrimitive addPart(LDPrimitive p) {
 		
+		editSerial++;
 		LDPrimitive old = mainModel.addPart(p);
+		indexAddedPart(p, old);
 		LDRenderedPart rp = LDRenderedPart.newRenderedPart(p);
 		display.addRenderedPart(rp);
 		if (old != null) {
@@ -657,6 +1128,163 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	
 	
 	
+	/**
+	 * Add a set of parts to model, connections and display in a single pass
+	 * <p>
+	 * Display is refreshed only once, at the end
+	 * @param parts list of parts to add
+	 */
+	public void addParts(Collection<LDPrimitive> parts) {
+		
+		editSerial++;
+		display.disableAutoRedraw();
+		for (LDPrimitive p: parts) {
+			LDPrimitive old = mainModel.addPart(p);
+			indexAddedPart(p, old);
+			display.addRenderedPart(LDRenderedPart.newRenderedPart(p));
+			if (old != null) {
+				connHandler.delConnections(old);
+			}
+			connHandler.addConnections(p);
+		}
+		display.enableAutoRedraw();
+		display.update();
+	}
+	
+	
+	
+	/**
+	 * Replaces a set of parts with new ones with same ids, in a single pass
+	 * <p>
+	 * Only connections of replaced parts are updated, display is refreshed only once.
+	 * New rendered parts keep selected, hidden and dragged state of replaced ones.
+	 * @param parts new parts
+	 * @return replaced parts
+	 */
+	public List<LDPrimitive> replaceParts(Collection<LDPrimitive> parts) {
+		
+		editSerial++;
+		List<LDPrimitive> oldParts = new ArrayList<LDPrimitive>(parts.size());
+		display.disableAutoRedraw();
+		for (LDPrimitive p: parts) {
+			LDPrimitive old = mainModel.addPart(p);
+			indexAddedPart(p, old);
+			display.addRenderedPart(LDRenderedPart.newRenderedPart(p));
+			restorePartState(p.getId());
+			if (old != null) {
+				connHandler.delConnections(old);
+				oldParts.add(old);
+			}
+			connHandler.addConnections(p);
+		}
+		display.enableAutoRedraw();
+		display.update();
+		return oldParts;
+	}
+	
+	
+	
+	/**
+	 * Applies editor state of a part to its new rendered part
+	 * <p>
+	 * A new rendered part is drawn unselected, visible and with no step 
+	 * status, so a replaced part needs its selection, hiding and step 
+	 * highlight back
+	 * @param id global id of replaced part
+	 */
+	private void restorePartState(int id) {
+		
+		LDRenderedPart rp = display.getPart(id);
+		if (rp == null)
+			return;
+		if (highlightedStep >= 0) {
+			int s = getStepOf(id);
+			if (s == highlightedStep) {
+				rp.highLight();
+			}
+			else if (s > highlightedStep) {
+				rp.dimOn();
+			}
+		}
+		if (selectedParts.contains(id)) {
+			rp.select();
+		}
+		if (hiddenParts.contains(id) || draggedParts.contains(id)) {
+			rp.hide();
+		}
+	}
+	
+	
+	
+	/**
+	 * Changes color of a set of parts, in a single pass
+	 * <p>
+	 * Geometry, connections and steps don't change, so connections and step 
+	 * index are left as they are. Parts already in new color are skipped. 
+	 * Display has no way to change color of a rendered part, so every 
+	 * recolored part is rendered again, getting back its selection and step 
+	 * status; display is refreshed only once.
+	 * @param ids global ids of parts to recolor
+	 * @param colorIndex new color
+	 * @return replaced parts, with old color
+	 */
+	public List<LDPrimitive> recolorParts(Collection<Integer> ids, int colorIndex) {
+		
+		editSerial++;
+		List<LDPrimitive> oldParts = new ArrayList<LDPrimitive>(ids.size());
+		display.disableAutoRedraw();
+		for (int id: ids) {
+			LDPrimitive p = getPart(id);
+			if (p == null || p.getColorIndex() == colorIndex)
+				continue;
+			LDPrimitive np = p.setColorIndex(colorIndex);
+			mainModel.addPart(np);
+			display.addRenderedPart(LDRenderedPart.newRenderedPart(np));
+			restorePartState(id);
+			oldParts.add(p);
+		}
+		display.enableAutoRedraw();
+		display.update();
+		return oldParts;
+	}
+	
+	
+	
+	/**
+	 * Hides parts while they are dragged around
+	 * <p>
+	 * Parts stay in model, but are ignored as hidden by connection search
+	 * @param parts dragged parts
+	 */
+	public void startDragging(Collection<LDPrimitive> parts) {
+		
+		for (LDPrimitive p: parts) {
+			LDRenderedPart rp = display.getPart(p.getId());
+			if (rp != null) {
+				rp.hide();
+			}
+			draggedParts.add(p.getId());
+		}
+	}
+	
+	
+	
+	/**
+	 * Shows again dragged parts, at drop or if drag is cancelled
+	 */
+	public void endDragging() {
+		
+		for (int id: draggedParts) {
+			LDRenderedPart rp = display.getPart(id);
+			if (rp != null && !hiddenParts.contains(id)) {
+				rp.show();
+			}
+		}
+		draggedParts.clear();
+	}
+	
+	
+	
 	/**
 	 * Deletes part p from model, connections and display
 	 * @param p part to remove
@@ -664,13 +1292,55 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	 */
 	public LDPrimitive delPart(LDPrimitive p) {
 		
+		editSerial++;
 		display.delRenderedPart(p.getId());
 		connHandler.delConnections(p);
+		draggedParts.remove(p.getId());
+		if (stepIndex != null) {
+			stepIndex.remove(p.getId());
+		}
 		return mainModel.delPart(p);
 	}
 	
 	
 	
+	/**
+	 * Deletes a set of parts from model, connections and display in a single pass
+	 * <p>
+	 * Display is refreshed only once, at the end. Display and connection 
+	 * handler have no bulk removal, so rendered parts and connections are 
+	 * still removed one part at a time.
+	 * @param parts parts to remove
+	 * @return removed parts
+	 */
+	public List<LDPrimitive> delParts(Collection<LDPrimitive> parts) {
+		
+		editSerial++;
+		List<LDPrimitive> removed = new ArrayList<LDPrimitive>(parts.size());
+		display.disableAutoRedraw();
+		for (LDPrimitive p: parts) {
+			display.delRenderedPart(p.getId());
+			connHandler.delConnections(p);
+			selectedParts.remove(p.getId());
+			hiddenParts.remove(p.getId());
+			draggedParts.remove(p.getId());
+			LDPrimitive old = mainModel.delPart(p);
+			if (old != null) {
+				removed.add(old);
+			}
+		}
+		if (stepIndex != null) {
+			for (LDPrimitive p: removed) {
+				stepIndex.remove(p.getId());
+			}
+		}
+		display.enableAutoRedraw();
+		display.update();
+		return removed;
+	}
+	
+	
+	
 
 
 	/////////////////////
@@ -725,6 +1395,30 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	}
 
 
+	
+	/**
+	 * Counter of model changes, changes every time model is edited
+	 * <p>
+	 * Used to check if model is changed since a previous call
+	 */
+	public long getEditSerial() {
+		return editSerial;
+	}
+
+
+
+	/**
+	 * Sets step shown highlighted, with parts in later steps dimmed
+	 * <p>
+	 * Rendered parts are not changed here: it is used to give back step 
+	 * status to parts rendered again by editing
+	 * @param step highlighted step, -1 if no step is highlighted
+	 */
+	public void setHighlightedStep(int step) {
+		highlightedStep = step;
+	}
+
+
 
 	public Collection<LDPrimitive> getPartsInStep(int n) {
 		return mainModel.getPartsInStep(n);
@@ -732,12 +1426,145 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	
 
 	public void moveToCurrStep(LDPrimitive p) {
+		editSerial++;
 		mainModel.moveToCurrStep(p);
+		if (stepIndex != null) {
+			stepIndex.move(p.getId(), mainModel.getCurrStep());
+		}
 	}
 
 
 	public void moveToStep(LDPrimitive p, int s) {
+		editSerial++;
 		mainModel.moveToStep(p, s);
+		if (stepIndex != null) {
+			stepIndex.move(p.getId(), s);
+		}
+	}
+	
+	
+	
+	/**
+	 * Moves a set of parts to a step in a single call
+	 * @param ids global ids of parts to move, unknown ids are ignored
+	 * @param s destination step
+	 */
+	public void moveToStep(Collection<Integer> ids, int s) {
+		
+		if (s < 0)
+			throw new IllegalArgumentException("[LDEditor.moveToStep] Step must be 0 or greater.");
+		editSerial++;
+		StepIndex index = getStepIndex();
+		for (int id: ids) {
+			if (index.getStep(id) == s)
+				continue;
+			LDPrimitive p = getPart(id);
+			if (p == null)
+				continue;
+			mainModel.moveToStep(p, s);
+			index.move(id, s);
+		}
+	}
+	
+	
+	
+	/**
+	 * Updates step index after a part is added to model: a new part goes 
+	 * in current step, a replaced part keeps its step
+	 * @param p added part
+	 * @param old replaced part, or null
+	 */
+	private void indexAddedPart(LDPrimitive p, LDPrimitive old) {
+		
+		if (stepIndex != null && old == null) {
+			stepIndex.add(p.getId(), mainModel.getCurrStep());
+		}
+	}
+	
+	
+	
+	/**
+	 * Step index, built from model at first use and after steps are rewritten
+	 */
+	private StepIndex getStepIndex() {
+		
+		if (stepIndex == null) {
+			StepIndex index = new StepIndex();
+			for (int s=0;s<=mainModel.getNumSteps();s++) {
+				for (LDPrimitive p: mainModel.getPartsInStep(s)) {
+					index.add(p.getId(), s);
+				}
+			}
+			stepIndex = index;
+		}
+		return stepIndex;
+	}
+	
+	
+	
+	/**
+	 * Step where a part is placed
+	 * @param id part global id
+	 * @return step or -1 if part isn't in model
+	 */
+	public int getStepOf(int id) {
+		return getStepIndex().getStep(id);
+	}
+	
+	
+	public int countPartsInStep(int s) {
+		return getStepIndex().count(s);
+	}
+	
+	
+	/**
+	 * Ids of parts in a step, in no particular order
+	 */
+	public int[] getPartIdsInStep(int s) {
+		return getStepIndex().getIds(s);
+	}
+	
+	
+	/**
+	 * Ids of parts in all steps after step s, in no particular order
+	 */
+	public int[] getPartIdsAfterStep(int s) {
+		return getStepIndex().getIdsAfter(s);
+	}
+
+	
+	/**
+	 * Copy of step index, can be read outside event thread
+	 */
+	public StepIndex getStepIndexCopy() {
+		return getStepIndex().copy();
+	}
+
+	
+	
+	/**
+	 * Rewrites all building steps in a single pass
+	 * <p>
+	 * Current plugin is notified only once, when model goes back to first step
+	 * @param steps list of steps, every step is a list of part ids
+	 */
+	public void setSteps(List<List<Integer>> steps) {
+		
+		editSerial++;
+		mainModel.goFirstStep();
+		for (int s=0;s<steps.size();s++) {
+			if (s > 0) {
+				mainModel.nextStep();
+			}
+			for (int id: steps.get(s)) {
+				LDPrimitive p = getPart(id);
+				if (p != null) {
+					mainModel.moveToCurrStep(p);
+				}
+			}
+		}
+		stepIndex = null;
+		goFirstStep();
 	}
 	
 
@@ -846,6 +1673,8 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 		
 		if (s != null && s != "") {
 			unsavedParts.add(s);
+			unsavedSerials.put(s, ++registerSerial);
+			autosaveDirty.add(s);
 		}
 	}
 	
@@ -855,6 +1684,7 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 		
 		if (s != null && s != "") {
 			unsavedParts.remove(s);
+			unsavedSerials.remove(s);
 		}
 	}
 	
@@ -862,19 +1692,19 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	
 	/**
 	 * Start a cut or copy action
+	 * <p>
+	 * Selected parts are kept in editor clipboard "as is", without copy.
 	 * @param cutMode if true do a "cut"
 	 */
 	public void doCutCopy(boolean cutMode) {
 		
 		if (getSelected().size() == 0)
 			return;
-		LDrawPart savedPart = LDrawPart.newInternalUsePart(savedPartName);
-		List<LDPrimitive> tempPart = new ArrayList<LDPrimitive>();
+		List<LDPrimitive> tempPart = new ArrayList<LDPrimitive>(getSelected().size());
 		for (int i: getSelected()) {
-			// copy part to temp block
-			tempPart.add(getPart(i).getClone());
+			tempPart.add(getPart(i));
 		}
-		// computes moved part "center of gravity"
+		// computes parts "center of gravity"
 		float x=0, y=0, z=0;
 		for (LDPrimitive p: tempPart) {
 			x += p.getTransformation().getX();
@@ -886,17 +1716,14 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 		y /= tempPart.size();
 		z /= tempPart.size();
 		// new origin
-		Matrix3D origin = new Matrix3D().moveTo(-x,-y,-z);
-		for (LDPrimitive p: tempPart) {
-			p = p.transform(origin);
-			savedPart.addPart(p);
-		}
+		clipboardOrigin = new Matrix3D().moveTo(-x,-y,-z);
+		clipboard = tempPart;
 		unselectAll();
 		// now if "cut" deleted parts and prepare undo
 		if (cutMode) {
 			undo.startUndoRecord();
-			for (LDPrimitive p: tempPart) {
-				undo.recordDelete(delPart(getPart(p.getId())));
+			for (LDPrimitive p: delParts(tempPart)) {
+				undo.recordDelete(p);
 			}
 			undo.endUndoRecord();
 		}
@@ -905,122 +1732,316 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	
 	
 	
+	/**
+	 * Paste clipboard content centered on current cursor position
+	 * <p>
+	 * Pasted parts and geometry are added in a single batch, then handed 
+	 * to drag mode: block follows pointer, with autoconnect, until it is 
+	 * dropped with a click. ESC leaves block where it was pasted.
+	 */
 	public void doPaste() {
 
-		if (LDrawPart.existsInternalUsePart(savedPartName)) {
-			dh.resetPointerMatrix();
-			startAction(ADDPLUGIN, savedPartName,currentColor, true);
+		if (clipboard.size() == 0)
+			return;
+		resetCurrentAction();
+		dh.resetPointerMatrix();
+		Matrix3D t = clipboardOrigin.transform(dh.getCurrentMatrix().moveTo(getCursor()));
+		List<LDPrimitive> pasted = new ArrayList<LDPrimitive>(clipboard.size());
+		for (LDPrimitive p: clipboard) {
+			int color = p.getColorIndex() == LDrawColor.CURRENT ? currentColor : p.getColorIndex();
+			if (isGeometry(p.getType())) {
+				float[] v = p.getPointsFV();
+				float[] w = new float[v.length];
+				for (int i=0;i+2<v.length;i+=3) {
+					float[] tp = t.transformPoint(v[i], v[i+1], v[i+2]);
+					w[i] = tp[0];
+					w[i+1] = tp[1];
+					w[i+2] = tp[2];
+				}
+				pasted.add(newGeometry(p.getType(), color, w));
+			}
+			else if (p.getType() == LDrawCommand.REFERENCE) {
+				pasted.add(LDPrimitive.newGlobalPart(p.getLdrawId(), color, p.getTransformation().transform(t)));
+			}
+			// META and steps aren't pasted
+		}
+		if (pasted.size() == 0)
+			return;
+		unselectAll();
+		undo.startUndoRecord();
+		for (LDPrimitive p: pasted) {
+			undo.recordAdd(p);
+		}
+		undo.endUndoRecord();
+		addParts(pasted);
+		for (LDPrimitive p: pasted) {
+			select(p.getId());
+		}
+		display.update();
+		if (listener != null) {
+			listener.modifiedNotification(undo.isModified());
+			listener.undoAvailableNotification(undo.isUndoAvailable());
+			listener.redoAvailableNotification(undo.isRedoAvailable());
 		}
+		// interactive placement of whole selection
+		startAction(DRAGPLUGIN, pasted.get(0).getId());
 	}
 	
 	
 	
 	
+	/**
+	 * Explode selected submodels, only first level
+	 * @return number of submodels exploded
+	 */
 	public int explodeSelected() {
 		
+		return explodeSelected(1);
+	}
+	
+	
+	
+	/**
+	 * Explode selected submodels down to requested depth
+	 * <p>
+	 * Parts placement is computed in parallel over submodel tree, then 
+	 * resulting parts are added to model in a single batch and a single undo record.
+	 * Lines, triangles and quads in submodels are exploded too, and every 
+	 * exploded part goes in step of submodel it comes from.
+	 * @param depth levels to expand, 0 or less to expand down to single parts
+	 * @return number of submodels exploded
+	 */
+	public int explodeSelected(int depth) {
+		
 		if (getSelected().size() == 0)
 			return 0;
-		int expanded = 0;
-		display.disableAutoRedraw();
-		undo.startUndoRecord();
+		if (depth <= 0 || depth > MAX_EXPLODE_DEPTH) {
+			depth = MAX_EXPLODE_DEPTH;
+		}
+		List<LDPrimitive> selected = new ArrayList<LDPrimitive>();
 		for (int id : getSelected()) {
-			//LDRenderedPart rp = LDRenderedPart.getByGlobalId(id);
 			LDPrimitive pp = getPart(id);
-			// TODO: test avoiding "explosion" of parts
-			if (pp.getType() != LDrawCommand.REFERENCE) {
-				continue;
+			if (pp.getType() == LDrawCommand.REFERENCE) {
+				selected.add(pp);
 			}
-			LDrawPartType pt = LDrawPart.getPart(pp.getLdrawId()).getPartType();
-			if (pt == LDrawPartType.GEOM_PRIMITIVE
-					|| pt == LDrawPartType.OFFICIAL
-					|| pt == LDrawPartType.PRIMITIVE
-					|| pt == LDrawPartType.PRIMITIVE48
-					|| pt == LDrawPartType.PRIMITIVE8
-					|| pt == LDrawPartType.SHORTCUT
-					|| pt == LDrawPartType.UNOFF_PRIM
-					|| pt == LDrawPartType.UNOFF8
-					|| pt == LDrawPartType.UNOFF48
-					|| pt == LDrawPartType.UNOFF_SHORTCUT
-					|| pt == LDrawPartType.UNOFFICIAL
-					) {
-				continue;
-			}			
-			delPart(pp);
-			undo.recordDelete(pp);
-			expandSubModel(pp);
-			expanded++;
 		}
 		unselectAll();
+		// submodel tree, collected here because part library isn't thread safe
+		Map<String,List<LDPrimitive>> tree = loadSubModelTree(selected, depth);
+		List<LDPrimitive> exploded = new ArrayList<LDPrimitive>();
+		for (LDPrimitive pp : selected) {
+			if (tree.containsKey(pp.getLdrawId())) {
+				exploded.add(pp);
+			}
+		}
+		if (exploded.size() == 0)
+			return 0;
+		// compute placement for every part in submodels
+		List<ExplodeTask> tasks = new ArrayList<ExplodeTask>(exploded.size());
+		for (LDPrimitive pp : exploded) {
+			ExplodeTask t = new ExplodeTask(tree, pp.getLdrawId(), 
+					pp.getTransformation(), pp.getColorIndex(), depth);
+			explodePool.execute(t);
+			tasks.add(t);
+		}
+		// parts go in step of submodel they come from
+		List<LDPrimitive> parts = new ArrayList<LDPrimitive>();
+		Map<Integer,List<Integer>> steps = new HashMap<Integer, List<Integer>>();
+		for (int i=0;i<tasks.size();i++) {
+			int s = getStepOf(exploded.get(i).getId());
+			List<Integer> ids = steps.get(s);
+			if (ids == null) {
+				ids = new ArrayList<Integer>();
+				steps.put(s, ids);
+			}
+			for (PlacedRef r : tasks.get(i).join()) {
+				LDPrimitive p = r.toPrimitive();
+				parts.add(p);
+				ids.add(p.getId());
+			}
+		}
+		undo.startUndoRecord();
+		for (LDPrimitive pp : delParts(exploded)) {
+			undo.recordDelete(pp);
+		}
+		for (LDPrimitive p : parts) {
+			undo.recordAdd(p);
+		}
 		undo.endUndoRecord();
-		//resetPartInfo();
-		display.update();
-		return expanded;
+		addParts(parts);
+		for (Map.Entry<Integer,List<Integer>> s : steps.entrySet()) {
+			moveToStep(s.getValue(), s.getKey());
+		}
+		return exploded.size();
 	}
 	
 	
-
-	/** 
-	 * expand submodel identified by rendered part rp
-	 * does not deletes parts, connections and rendered part from display
-	 * @param rp
+	
+	/**
+	 * New line, optional line, triangle or quad
+	 * @param type geometry type
+	 * @param color color index
+	 * @param v points, x y z sequential
+	 * @return new primitive with its own global id
 	 */
-	private void expandSubModel(LDPrimitive rp) {
-		LDrawPart m = LDrawPart.getPart(rp.getLdrawId());
-		Matrix3D t = rp.getTransformation();
-		int color = rp.getColorIndex();
-		for (LDPrimitive p: m.getPrimitives()) {
-			if (p.getType() != LDrawCommand.REFERENCE) {
-				// ignore non-reference elements
-				continue;
-			}
-			if (p.getColorIndex() == 16) {
-				color = rp.getColorIndex();
-			}
-			else {
-				color = p.getColorIndex();
-			}
-			LDPrimitive np = LDPrimitive.newGlobalPart(p.getLdrawId(), color, p.getTransformation().transform(t));
-			addPart(np);
-			undo.recordAdd(np);
+	private static LDPrimitive newGeometry(LDrawCommand type, int color, float[] v) {
+		
+		switch (type) {
+		case LINE:
+			return LDPrimitive.newLine(color, v[0], v[1], v[2], v[3], v[4], v[5]);
+		case TRIANGLE:
+			return LDPrimitive.newTriangle(color, v[0], v[1], v[2], v[3], v[4], v[5], 
+					v[6], v[7], v[8]);
+		case QUAD:
+			return LDPrimitive.newQuad(color, v[0], v[1], v[2], v[3], v[4], v[5], 
+					v[6], v[7], v[8], v[9], v[10], v[11]);
+		case AUXLINE:
+			return LDPrimitive.newAuxLine(color, v[0], v[1], v[2], v[3], v[4], v[5], 
+					v[6], v[7], v[8], v[9], v[10], v[11]);
+		default:
+			throw new IllegalArgumentException("[LDEditor.newGeometry] Not a geometry type: "+type);
 		}
 	}
 	
 	
-	public void saveSelectedAsBlock() {
-		if (getSelected().size() > 0) {
-			// generate a name that do not collides with other parts
-			String blockPartName = "blk-" + System.currentTimeMillis() + ".ldr";
-			if (LDrawPart.existsCustomPart(blockPartName)) {
-				blockPartName = "blk-" + (System.currentTimeMillis()+12) + ".ldr";			
-			}
-			LDrawPart blockPart = LDrawPart.newCustomPart(blockPartName);
-			blockPart.setDescription("Saved block");
-			List<LDPrimitive> tempPart = new ArrayList<LDPrimitive>();
-			for (int i: getSelected()) {
-				// copy moving part to "moving block"
-				tempPart.add(getPart(i).getCopy());
-			}
-			// computes moved part "center of gravity"
-			float x=0, y=0, z=0;
-			for (LDPrimitive p: tempPart) {
-				x += p.getTransformation().getX();
-				y += p.getTransformation().getY();
-				z += p.getTransformation().getZ();
+	
+	/**
+	 * true if command is a line, optional line, triangle or quad
+	 */
+	private static boolean isGeometry(LDrawCommand t) {
+		
+		return t == LDrawCommand.LINE
+				|| t == LDrawCommand.AUXLINE
+				|| t == LDrawCommand.TRIANGLE
+				|| t == LDrawCommand.QUAD;
+	}
+	
+	
+	
+	/**
+	 * true if part type is a library part or primitive, that can't be exploded
+	 */
+	private static boolean isLibraryPart(LDrawPartType pt) {
+		
+		return pt == LDrawPartType.GEOM_PRIMITIVE
+				|| pt == LDrawPartType.OFFICIAL
+				|| pt == LDrawPartType.PRIMITIVE
+				|| pt == LDrawPartType.PRIMITIVE48
+				|| pt == LDrawPartType.PRIMITIVE8
+				|| pt == LDrawPartType.SHORTCUT
+				|| pt == LDrawPartType.UNOFF_PRIM
+				|| pt == LDrawPartType.UNOFF8
+				|| pt == LDrawPartType.UNOFF48
+				|| pt == LDrawPartType.UNOFF_SHORTCUT
+				|| pt == LDrawPartType.UNOFFICIAL;
+	}
+	
+	
+	
+	/**
+	 * Collects references and geometry (lines, triangles, quads) in submodels 
+	 * and nested submodels, down to depth levels
+	 * <p>
+	 * Tree is visited breadth first, so a submodel used at different levels is 
+	 * loaded at its upper level
+	 * @param roots submodels to load
+	 * @param depth levels to load
+	 * @return map submodel name -> references and geometry in submodel
+	 */
+	private static Map<String,List<LDPrimitive>> loadSubModelTree(Collection<LDPrimitive> roots, int depth) {
+		
+		Map<String,List<LDPrimitive>> tree = new HashMap<String, List<LDPrimitive>>();
+		Set<String> known = new HashSet<String>();
+		List<String> level = new ArrayList<String>();
+		for (LDPrimitive p: roots) {
+			if (known.add(p.getLdrawId())) {
+				level.add(p.getLdrawId());
 			}
-			// median point
-			x /= tempPart.size();
-			y /= tempPart.size();
-			z /= tempPart.size();
-			for (LDPrimitive p: tempPart) {
-				p.moveTo(-x,-y,-z);
-				blockPart.addPart(p);
+		}
+		for (int i=0; i<depth && level.size() > 0; i++) {
+			List<String> next = new ArrayList<String>();
+			for (String ldrid: level) {
+				if (isLibraryPart(LDrawPart.getPart(ldrid).getPartType()))
+					continue;
+				List<LDPrimitive> refs = new ArrayList<LDPrimitive>();
+				for (LDPrimitive p: LDrawPart.getPart(ldrid).getPrimitives()) {
+					if (isGeometry(p.getType())) {
+						refs.add(p);
+						continue;
+					}
+					// ignore META, comments and steps
+					if (p.getType() != LDrawCommand.REFERENCE) 
+						continue;
+					refs.add(p);
+					if (known.add(p.getLdrawId())) {
+						next.add(p.getLdrawId());
+					}
+				}
+				tree.put(ldrid, refs);
 			}
+			level = next;
 		}
+		return tree;
 	}
 	
 	
-
-
+	
+	/**
+	 * Save selected parts as a block, a custom part centered on parts "center of gravity"
+	 * <p>
+	 * If an identical block was already saved in this session, it is reused
+	 * @return block ldraw id, or null if no part is selected
+	 */
+	public String saveSelectedAsBlock() {
+		
+		if (getSelected().size() == 0)
+			return null;
+		List<LDPrimitive> tempPart = new ArrayList<LDPrimitive>();
+		for (int i: getSelected()) {
+			tempPart.add(getPart(i));
+		}
+		// computes parts "center of gravity"
+		float x=0, y=0, z=0;
+		for (LDPrimitive p: tempPart) {
+			x += p.getTransformation().getX();
+			y += p.getTransformation().getY();
+			z += p.getTransformation().getZ();
+		}
+		// median point
+		x /= tempPart.size();
+		y /= tempPart.size();
+		z /= tempPart.size();
+		Matrix3D origin = new Matrix3D().moveTo(-x,-y,-z);
+		List<LDPrimitive> blockParts = new ArrayList<LDPrimitive>(tempPart.size());
+		List<String> keys = new ArrayList<String>(tempPart.size());
+		for (LDPrimitive p: tempPart) {
+			LDPrimitive np = p.transform(origin);
+			blockParts.add(np);
+			keys.add(ContentHash.primitiveKey(np));
+		}
+		String hash = ContentHash.digest(keys);
+		String blockPartName = savedBlocks.get(hash);
+		if (blockPartName != null && LDrawPart.existsCustomPart(blockPartName)) {
+			// same block already saved
+			return blockPartName;
+		}
+		// generate a name that do not collides with other parts
+		blockPartName = "blk-" + System.currentTimeMillis() + ".ldr";
+		if (LDrawPart.existsCustomPart(blockPartName)) {
+			blockPartName = "blk-" + (System.currentTimeMillis()+12) + ".ldr";			
+		}
+		LDrawPart blockPart = LDrawPart.newCustomPart(blockPartName);
+		blockPart.setDescription("Saved block");
+		for (LDPrimitive p: blockParts) {
+			// copy part to block
+			blockPart.addPart(p.getCopy());
+		}
+		savedBlocks.put(hash, blockPartName);
+		return blockPartName;
+	}
+	
+	
+	
 
 	
 	/////////////////////
@@ -1103,7 +2124,7 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	 */
 	@Override
 	public boolean isHidden(int id) {
-		return hiddenParts.contains(id);
+		return hiddenParts.contains(id) || draggedParts.contains(id);
 	}
 
 
@@ -1208,21 +2229,19 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 		if (!undo.isUndoAvailable()) 
 			return;
 		List<UndoableAction<LDPrimitive>> actionList = undo.peekNextUndoActions();
-		display.disableAutoRedraw();
-		// do first deletion, next adds to avoid problem with modify
+		List<LDPrimitive> toDelete = new ArrayList<LDPrimitive>();
+		List<LDPrimitive> toAdd = new ArrayList<LDPrimitive>();
 		for (UndoableAction<LDPrimitive> a : actionList) {
 			if (a.getOp() == UndoableOperation.ADD) {
-				delPart(a.getObject());
+				toDelete.add(a.getObject());
 			}
-		}
-		for (UndoableAction<LDPrimitive> a : actionList) {
-			if (a.getOp() == UndoableOperation.DEL) {
-				addPart(a.getObject());
+			else if (a.getOp() == UndoableOperation.DEL) {
+				toAdd.add(a.getObject());
 			}
 		}
+		// do first deletion, next adds to avoid problem with modify
+		applyUndoActions(toDelete, toAdd);
 		undo.undo();
-		display.enableAutoRedraw();
-		display.update();
 	}
 	
 
@@ -1232,20 +2251,70 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 		if (!undo.isRedoAvailable()) 
 			return;
 		List<UndoableAction<LDPrimitive>> actionList = undo.peekNextRedoActions();
-		display.disableAutoRedraw();
+		List<LDPrimitive> toDelete = new ArrayList<LDPrimitive>();
+		List<LDPrimitive> toAdd = new ArrayList<LDPrimitive>();
 		for (UndoableAction<LDPrimitive> a : actionList) {
 			if (a.getOp() == UndoableOperation.DEL) {
-				delPart(a.getObject());
+				toDelete.add(a.getObject());
 			}
-		}
-		for (UndoableAction<LDPrimitive> a : actionList) {
-			if (a.getOp() == UndoableOperation.ADD) {
-				addPart(a.getObject());
+			else if (a.getOp() == UndoableOperation.ADD) {
+				toAdd.add(a.getObject());
 			}
 		}
+		applyUndoActions(toDelete, toAdd);
 		undo.redo();
-		display.enableAutoRedraw();
-		display.update();
+	}
+	
+	
+	
+	/**
+	 * Applies parts deleted and added by an undo or redo
+	 * <p>
+	 * A part deleted and added with same id is an in place edit (move, 
+	 * rotation, color): it is replaced, so it stays in its step
+	 * @param toDelete parts to delete
+	 * @param toAdd parts to add
+	 */
+	private void applyUndoActions(List<LDPrimitive> toDelete, List<LDPrimitive> toAdd) {
+		
+		Set<Integer> addIds = new HashSet<Integer>();
+		for (LDPrimitive p: toAdd) {
+			addIds.add(p.getId());
+		}
+		Set<Integer> replacedIds = new HashSet<Integer>();
+		List<LDPrimitive> deleted = new ArrayList<LDPrimitive>(toDelete.size());
+		for (LDPrimitive p: toDelete) {
+			if (addIds.contains(p.getId())) {
+				replacedIds.add(p.getId());
+			}
+			else {
+				deleted.add(p);
+			}
+		}
+		List<LDPrimitive> replaced = new ArrayList<LDPrimitive>(replacedIds.size());
+		List<LDPrimitive> added = new ArrayList<LDPrimitive>(toAdd.size());
+		for (LDPrimitive p: toAdd) {
+			if (replacedIds.contains(p.getId())) {
+				replaced.add(p);
+			}
+			else {
+				added.add(p);
+			}
+		}
+		delParts(deleted);
+		// steps of replaced parts before replace
+		Map<Integer,Integer> steps = new HashMap<Integer, Integer>();
+		for (int id: replacedIds) {
+			steps.put(id, getStepOf(id));
+		}
+		replaceParts(replaced);
+		// replaced part must stay in its step in index and model, whatever step is shown
+		for (LDPrimitive p: replaced) {
+			int s = steps.get(p.getId());
+			assert getStepOf(p.getId()) == s && mainModel.getPartsInStep(s).contains(p) 
+					: "[LDEditor.applyUndoActions] Part "+p.getId()+" moved from step "+s;
+		}
+		addParts(added);
 	}
 	
 
@@ -1338,6 +2407,12 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 
 	
 	
+	/**
+	 * Current cursor position
+	 * <p>
+	 * Returned point is updated in place when cursor moves, copy it
+	 * to keep a position.
+	 */
 	public Point3D getCursor() {
 		
 		return prevCursor;
@@ -1436,20 +2511,21 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 		float[] pos = dh.getTargetPoint(eyeNear,eyeFar);
 		if (pos[0] < -0.99) // line is parallel, no intersection 
 			return;
-		Point3D cursor = null;
+		float x = pos[1], y = pos[2], z = pos[3];
 		if (snapping) {
 			float snap = dh.getSnap();
-			 cursor = new Point3D(
-					Math.round(pos[1]/snap)*snap,
-					Math.round(pos[2]/snap)*snap,
-					Math.round(pos[3]/snap)*snap);
-		}
-		else {
-			cursor = new Point3D(pos, 1);
+			x = Math.round(x/snap)*snap;
+			y = Math.round(y/snap)*snap;
+			z = Math.round(z/snap)*snap;
 		}
-		if (! prevCursor.coincident(cursor)) {
+		// compare and update in place, no allocation on moves
+		if (Math.abs(prevCursor.x-x) > CURSOR_EPSILON 
+				|| Math.abs(prevCursor.y-y) > CURSOR_EPSILON 
+				|| Math.abs(prevCursor.z-z) > CURSOR_EPSILON) {
 			display.disableAutoRedraw();
-			prevCursor = cursor;
+			prevCursor.x = x;
+			prevCursor.y = y;
+			prevCursor.z = z;
 			if (getCurrentAction() != null) {
 				getCurrentAction().doMove(partId, eyeNear, eyeFar);
 			}
@@ -1546,6 +2622,116 @@ public class LDEditor implements Runnable, UncaughtExceptionHandler,
 	public void keyReleased(KeyEvent e) { }
 
 
+	
+	/**
+	 * A part reference or a geometry element placed in model space, waiting 
+	 * to become a primitive
+	 * <p>
+	 * Primitives get a global id when created, so they are created in event thread
+	 */
+	private static class PlacedRef {
+		
+		final LDrawCommand type;
+		final String ldrawId;
+		final int color;
+		final Matrix3D matrix;
+		final float[] points;
+		
+		PlacedRef(String ldrawId, int color, Matrix3D matrix) {
+			this.type = LDrawCommand.REFERENCE;
+			this.ldrawId = ldrawId;
+			this.color = color;
+			this.matrix = matrix;
+			this.points = null;
+		}
+		
+		PlacedRef(LDrawCommand type, int color, float[] points) {
+			this.type = type;
+			this.ldrawId = null;
+			this.color = color;
+			this.matrix = null;
+			this.points = points;
+		}
+		
+		LDPrimitive toPrimitive() {
+			
+			if (type == LDrawCommand.REFERENCE)
+				return LDPrimitive.newGlobalPart(ldrawId, color, matrix);
+			return newGeometry(type, color, points);
+		}
+	}
+	
+	
+	
+	/**
+	 * Computes placement of all parts and geometry in a submodel, forking 
+	 * a new task for every nested submodel
+	 */
+	private static class ExplodeTask extends RecursiveTask<List<PlacedRef>> {
+
+		private static final long serialVersionUID = 1L;
+		
+		private final Map<String,List<LDPrimitive>> tree;
+		private final String ldrawId;
+		private final Matrix3D transform;
+		private final int color;
+		private final int depth;
+		
+		ExplodeTask(Map<String,List<LDPrimitive>> tree, String ldrawId, 
+				Matrix3D transform, int color, int depth) {
+			this.tree = tree;
+			this.ldrawId = ldrawId;
+			this.transform = transform;
+			this.color = color;
+			this.depth = depth;
+		}
+		
+
+		@Override
+		protected List<PlacedRef> compute() {
+			
+			List<LDPrimitive> refs = tree.get(ldrawId);
+			// placed parts and nested submodel tasks, in submodel order
+			List<Object> items = new ArrayList<Object>(refs.size());
+			for (LDPrimitive p: refs) {
+				int c = p.getColorIndex() == LDrawColor.CURRENT ? color : p.getColorIndex();
+				if (p.getType() != LDrawCommand.REFERENCE) {
+					// geometry, points moved to model space
+					float[] v = p.getPointsFV();
+					float[] w = new float[v.length];
+					for (int i=0;i+2<v.length;i+=3) {
+						float[] t = transform.transformPoint(v[i], v[i+1], v[i+2]);
+						w[i] = t[0];
+						w[i+1] = t[1];
+						w[i+2] = t[2];
+					}
+					items.add(new PlacedRef(p.getType(), c, w));
+					continue;
+				}
+				Matrix3D m = p.getTransformation().transform(transform);
+				if (depth > 1 && tree.containsKey(p.getLdrawId())) {
+					ExplodeTask t = new ExplodeTask(tree, p.getLdrawId(), m, c, depth-1);
+					t.fork();
+					items.add(t);
+				}
+				else {
+					items.add(new PlacedRef(p.getLdrawId(), c, m));
+				}
+			}
+			List<PlacedRef> placed = new ArrayList<PlacedRef>(items.size());
+			for (Object o: items) {
+				if (o instanceof ExplodeTask) {
+					placed.addAll(((ExplodeTask) o).join());
+				}
+				else {
+					placed.add((PlacedRef) o);
+				}
+			}
+			return placed;
+		}
+	}
+
+
 
 
 
@@ -0,0 +1,201 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+
+import javax.swing.Timer;
+
+import bricksnspace.j3dgeom.Point3D;
+import bricksnspace.ldraw3d.HandlingListener;
+import bricksnspace.ldraw3d.PickMode;
+
+
+/**
+ * Input filter between display and editor, collapses mouse moves to display frame rate
+ * <p>
+ * Pending moves are replaced by the latest one and delivered at most once per frame.
+ * Any other event delivers pending move first, so clicks and keys stay ordered
+ * with moves.
+ *
+ * @param <T> editor receiving filtered events
+ */
+public class MoveCoalescer<T extends HandlingListener & KeyListener>
+	implements HandlingListener, KeyListener, ActionListener {
+
+
+	// default interval between two delivered moves, about 60 frame/s
+	public static final int FRAME_INTERVAL = 16;
+
+	private final T target;
+	private final Timer timer;
+	private final int interval;
+	private long lastMove = 0;
+
+	// pending move
+	private boolean pending = false;
+	private int partId;
+	private Point3D eyeNear;
+	private Point3D eyeFar;
+
+
+
+	public MoveCoalescer(T target) {
+
+		this(target,FRAME_INTERVAL);
+	}
+
+
+
+	/**
+	 * @param target editor receiving events
+	 * @param interval minimum interval between two moves, in milliseconds
+	 */
+	public MoveCoalescer(T target, int interval) {
+
+		if (target == null)
+			throw new IllegalArgumentException("[MoveCoalescer] Target must be not null.");
+		if (interval < 1)
+			throw new IllegalArgumentException("[MoveCoalescer] Interval must be greater than 0.");
+		this.target = target;
+		this.interval = interval;
+		timer = new Timer(interval, this);
+		timer.setRepeats(false);
+	}
+
+
+
+	/**
+	 * Delivers pending move, if any
+	 */
+	public void flush() {
+
+		timer.stop();
+		if (!pending)
+			return;
+		pending = false;
+		lastMove = System.currentTimeMillis();
+		target.moved(partId, eyeNear, eyeFar);
+		eyeNear = null;
+		eyeFar = null;
+	}
+
+
+
+	/**
+	 * Drops pending move without delivering it
+	 */
+	public void discard() {
+
+		timer.stop();
+		pending = false;
+		eyeNear = null;
+		eyeFar = null;
+	}
+
+
+
+	@Override
+	public void actionPerformed(ActionEvent e) {
+
+		flush();
+	}
+
+
+
+	@Override
+	public void moved(int partId, Point3D eyeNear, Point3D eyeFar) {
+
+		this.partId = partId;
+		this.eyeNear = eyeNear;
+		this.eyeFar = eyeFar;
+		pending = true;
+		if (timer.isRunning())
+			return;
+		long elapsed = System.currentTimeMillis() - lastMove;
+		if (elapsed >= interval) {
+			// first move after a pause goes without delay
+			flush();
+		}
+		else {
+			timer.setInitialDelay((int) (interval - elapsed));
+			timer.start();
+		}
+	}
+
+
+
+	@Override
+	public void picked(int partId, Point3D eyeNear, Point3D eyeFar, PickMode mode) {
+
+		flush();
+		target.picked(partId, eyeNear, eyeFar, mode);
+	}
+
+
+
+	@Override
+	public void endDragSelectionWindow() {
+
+		flush();
+		target.endDragSelectionWindow();
+	}
+
+
+
+	@Override
+	public void startDragParts(int partId) {
+
+		flush();
+		target.startDragParts(partId);
+	}
+
+
+
+	@Override
+	public void keyTyped(KeyEvent e) {
+
+		flush();
+		target.keyTyped(e);
+	}
+
+
+
+	@Override
+	public void keyPressed(KeyEvent e) {
+
+		flush();
+		target.keyPressed(e);
+	}
+
+
+
+	@Override
+	public void keyReleased(KeyEvent e) {
+
+		flush();
+		target.keyReleased(e);
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.j3dgeom.Point3D;
+import bricksnspace.ldraw3d.LDRenderedPart;
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * A part moving with cursor and its rendered preview
+ * <p>
+ * Rendered part is rebuilt only when part rotation or color changes.
+ * Translation is applied with a fast move, reusing the same rendered part.
+ *
+ */
+public class MovingPart {
+
+	// tolerance to consider two rotations the same
+	private static final float EPSILON = 0.0001f;
+
+	private LDPrimitive part;
+	// simplified part to render in place of part, if any
+	private LDPrimitive preview = null;
+	private LDRenderedPart rendered;
+	// last requested transformation, applied to part only when needed
+	private Matrix3D matrix;
+	private boolean dirty = false;
+	// rotation of rendered part and work area, in LDraw matrix order
+	private final float[] renderedMatrix = new float[12];
+	private final float[] newMatrix = new float[12];
+
+
+
+	public MovingPart(LDPrimitive p) {
+
+		if (p == null)
+			throw new IllegalArgumentException("[MovingPart] Part must be not null.");
+		part = p;
+		matrix = p.getTransformation();
+		render();
+	}
+
+
+
+	/**
+	 * Moving part rendered with a simplified preview
+	 * <p>
+	 * Part is used for placement and connections, preview only for display
+	 * @param p moving part
+	 * @param preview simplified part to render
+	 */
+	public MovingPart(LDPrimitive p, LDPrimitive preview) {
+
+		if (p == null || preview == null)
+			throw new IllegalArgumentException("[MovingPart] Part and preview must be not null.");
+		part = p;
+		this.preview = preview;
+		matrix = p.getTransformation();
+		render();
+	}
+
+
+
+	private void render() {
+
+		if (preview != null) {
+			preview = preview.setTransform(part.getTransformation()).setColorIndex(part.getColorIndex());
+			rendered = LDRenderedPart.newRenderedPart(preview);
+		}
+		else {
+			rendered = LDRenderedPart.newRenderedPart(part);
+		}
+		ContentHash.matrixValues(part.getTransformation(), renderedMatrix, 0);
+	}
+
+
+
+	/**
+	 * Sets a new transformation for moving part
+	 * <p>
+	 * Rendered part is rebuilt only if rotation differs from rendered one
+	 * @param m new transformation
+	 */
+	public void setTransform(Matrix3D m) {
+
+		if (m == matrix)
+			return;
+		matrix = m;
+		ContentHash.matrixValues(m, newMatrix, 0);
+		// only rotation, translation is done by fast move
+		for (int i=3;i<12;i++) {
+			if (Math.abs(newMatrix[i]-renderedMatrix[i]) > EPSILON) {
+				part = part.setTransform(m);
+				dirty = false;
+				render();
+				return;
+			}
+		}
+		dirty = true;
+	}
+
+
+
+	/**
+	 * Sets part color, rebuilds rendered part
+	 * @param colorIndex new color
+	 */
+	public void setColorIndex(int colorIndex) {
+
+		part = getPart().setColorIndex(colorIndex);
+		render();
+	}
+
+
+
+	/**
+	 * Moving part with last requested transformation
+	 */
+	public LDPrimitive getPart() {
+
+		if (dirty) {
+			part = part.setTransform(matrix);
+			dirty = false;
+		}
+		return part;
+	}
+
+
+
+	/**
+	 * global id of rendered part
+	 */
+	public int getId() {
+
+		return preview != null ? preview.getId() : part.getId();
+	}
+
+
+
+	/**
+	 * Moves rendered part to position
+	 * @param p new position
+	 * @return rendered part, ready to add to display
+	 */
+	public LDRenderedPart fastMove(Point3D p) {
+
+		return rendered.fastMove(p);
+	}
+
+}
@@ -0,0 +1,345 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bricksnspace.ldrawlib.LDrawPart;
+import bricksnspace.ldrawlib.LDrawPartType;
+
+
+/**
+ * MPD loader that parses submodels concurrently
+ * <p>
+ * File is split in its "0 FILE" sections, every section is parsed
+ * on a thread pool into records, then models are built on caller thread
+ * with references resolved, submodels first.
+ * <p>
+ * Header lines Name:, Author:, !LICENSE and !LDRAW_ORG go to part fields, 
+ * STEP and ROTSTEP end a step, other "0" lines, BFC statements included, 
+ * are kept as META in place.
+ *
+ */
+public final class MpdLoader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+	private MpdLoader() { /* static only */ }
+
+
+
+	/**
+	 * Loads an MPD or LDR file, submodels are registered as custom parts
+	 * @param f file to read
+	 * @param threads number of threads to use for parsing
+	 * @return main model, ready for {@link LDEditor#newLDModelEditor(LDrawPart, bricksnspace.ldraw3d.LDrawGLDisplay)}
+	 * @throws IOException on read or parse errors
+	 */
+	public static LDrawPart load(File f, int threads) throws IOException {
+
+		if (f == null)
+			throw new IllegalArgumentException("[MpdLoader.load] File must be not null.");
+		if (threads < 1)
+			throw new IllegalArgumentException("[MpdLoader.load] Threads must be greater than 0.");
+		// malformed characters are replaced, not an error
+		String[] lines = new String(Files.readAllBytes(f.toPath()), UTF8).split("\r?\n|\r");
+		final List<String> names = new ArrayList<String>();
+		final List<Integer> starts = new ArrayList<Integer>();
+		final List<Integer> ends = new ArrayList<Integer>();
+		splitSections(lines, f.getName(), names, starts, ends);
+		final List<String> allLines = Arrays.asList(lines);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, names.size()));
+		try {
+			List<Future<BinaryModel.Section>> results = new ArrayList<Future<BinaryModel.Section>>(names.size());
+			for (int i=0;i<names.size();i++) {
+				final String name = names.get(i);
+				final List<String> section = allLines.subList(starts.get(i), ends.get(i));
+				results.add(pool.submit(new Callable<BinaryModel.Section>() {
+
+					@Override
+					public BinaryModel.Section call() throws IOException {
+						return parseSection(name, section);
+					}
+				}));
+			}
+			List<BinaryModel.Section> sections = new ArrayList<BinaryModel.Section>(names.size());
+			for (Future<BinaryModel.Section> r: results) {
+				sections.add(r.get());
+			}
+			return BinaryModel.build(sections);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("[MpdLoader.load] Interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException("[MpdLoader.load] Parse failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+
+	/**
+	 * Finds "0 FILE" sections. A file without sections is a single model
+	 * named as file. Lines after "0 NOFILE" are ignored up to next section.
+	 */
+	private static void splitSections(String[] lines, String fileName, List<String> names,
+			List<Integer> starts, List<Integer> ends) {
+
+		int open = -1;
+		for (int i=0;i<lines.length;i++) {
+			String l = lines[i].trim();
+			if (isMeta(l, "FILE")) {
+				if (open >= 0) {
+					ends.add(i);
+				}
+				names.add(l.substring(l.indexOf("FILE")+4).trim());
+				starts.add(i+1);
+				open = i;
+			}
+			else if (isMeta(l, "NOFILE") && open >= 0) {
+				ends.add(i);
+				open = -1;
+			}
+		}
+		if (open >= 0) {
+			ends.add(lines.length);
+		}
+		if (names.size() == 0) {
+			names.add(fileName);
+			starts.add(0);
+			ends.add(lines.length);
+		}
+	}
+
+
+
+	/**
+	 * Checks if line is "0 keyword ..."
+	 */
+	private static boolean isMeta(String l, String keyword) {
+
+		if (!l.startsWith("0"))
+			return false;
+		String t = l.substring(1).trim();
+		return t.equals(keyword) || t.startsWith(keyword+" ") || t.startsWith(keyword+"\t");
+	}
+
+
+
+	/**
+	 * true if text of a "0" line is a plain comment, not a META command
+	 */
+	private static boolean isPlainComment(String text) {
+
+		return text.length() > 0 && !text.startsWith("!") && !text.startsWith("//")
+				&& !isMeta("0 "+text, "BFC") && !isMeta("0 "+text, "FILE") 
+				&& !isMeta("0 "+text, "NOFILE");
+	}
+
+
+
+	/**
+	 * Parses a section in records, safe to call outside event thread
+	 */
+	private static BinaryModel.Section parseSection(String name, List<String> lines) throws IOException {
+
+		List<BinaryModel.Record> records = new ArrayList<BinaryModel.Record>(lines.size());
+		String description = null;
+		String partName = null;
+		String author = null;
+		String license = null;
+		String partType = null;
+		int step = 0;
+		for (int n=0;n<lines.size();n++) {
+			String l = lines.get(n).trim();
+			if (l.length() == 0)
+				continue;
+			char type = l.charAt(0);
+			if (type == '0') {
+				String text = l.substring(1).trim();
+				if (isMeta(l, "STEP") || isMeta(l, "ROTSTEP")) {
+					step++;
+				}
+				else if (text.startsWith("Name:")) {
+					partName = text.substring(5).trim();
+				}
+				else if (text.startsWith("Author:")) {
+					author = text.substring(7).trim();
+				}
+				else if (isMeta(l, "!LICENSE")) {
+					license = text.substring(8).trim();
+				}
+				else if (isMeta(l, "!LDRAW_ORG")) {
+					partType = getPartType(text.substring(10).trim());
+				}
+				else if (description == null && records.size() == 0 && step == 0 
+						&& isPlainComment(text)) {
+					// first plain comment in header is model description
+					description = text;
+				}
+				else if (text.length() > 0) {
+					records.add(new BinaryModel.Record(BinaryModel.KIND_META, text, 0, step, null));
+				}
+			}
+			else if (type == '1') {
+				records.add(parseReference(name, n, l, step));
+			}
+			else if (type >= '2' && type <= '5') {
+				records.add(parseGeometry(name, n, l, step));
+			}
+			else {
+				throw new IOException("[MpdLoader] Unknown line type in "+name+" line "+(n+1));
+			}
+		}
+		return new BinaryModel.Section(name, description == null ? "" : description, partName, author, 
+				license, partType, records);
+	}
+
+
+
+	/**
+	 * Part type from !LDRAW_ORG value, like "Unofficial_Part" or "Part UPDATE 2004-01"
+	 * @return {@link LDrawPartType} name, or null if type is unknown
+	 */
+	private static String getPartType(String org) {
+
+		String t = org.split("\\s+", 2)[0].toLowerCase();
+		LDrawPartType pt = null;
+		if (t.equals("part") || t.equals("subpart")) {
+			pt = LDrawPartType.OFFICIAL;
+		}
+		else if (t.equals("primitive")) {
+			pt = LDrawPartType.PRIMITIVE;
+		}
+		else if (t.equals("8_primitive")) {
+			pt = LDrawPartType.PRIMITIVE8;
+		}
+		else if (t.equals("48_primitive")) {
+			pt = LDrawPartType.PRIMITIVE48;
+		}
+		else if (t.equals("shortcut")) {
+			pt = LDrawPartType.SHORTCUT;
+		}
+		else if (t.equals("unofficial_part") || t.equals("unofficial_subpart")) {
+			pt = LDrawPartType.UNOFFICIAL;
+		}
+		else if (t.equals("unofficial_primitive")) {
+			pt = LDrawPartType.UNOFF_PRIM;
+		}
+		else if (t.equals("unofficial_8_primitive")) {
+			pt = LDrawPartType.UNOFF8;
+		}
+		else if (t.equals("unofficial_48_primitive")) {
+			pt = LDrawPartType.UNOFF48;
+		}
+		else if (t.equals("unofficial_shortcut")) {
+			pt = LDrawPartType.UNOFF_SHORTCUT;
+		}
+		else if (t.equals("model") || t.equals("unofficial_model")) {
+			pt = LDrawPartType.MODEL;
+		}
+		return pt == null ? null : pt.name();
+	}
+
+
+
+	/**
+	 * Parses a line (2), triangle (3), quad (4) or auxiliary line (5): 
+	 * color followed by point coordinates
+	 */
+	private static BinaryModel.Record parseGeometry(String name, int n, String l, int step) throws IOException {
+
+		int kind;
+		int count;
+		switch (l.charAt(0)) {
+		case '2':
+			kind = BinaryModel.KIND_LINE;
+			count = 6;
+			break;
+		case '3':
+			kind = BinaryModel.KIND_TRIANGLE;
+			count = 9;
+			break;
+		case '4':
+			kind = BinaryModel.KIND_QUAD;
+			count = 12;
+			break;
+		default:
+			kind = BinaryModel.KIND_AUXLINE;
+			count = 12;
+		}
+		String[] t = l.split("\\s+");
+		if (t.length < count+2 || !t[0].equals(l.substring(0, 1)))
+			throw new IOException("[MpdLoader] Malformed line in "+name+" line "+(n+1));
+		try {
+			int color = Integer.decode(t[1]);
+			float[] v = new float[count];
+			for (int i=0;i<count;i++) {
+				v[i] = Float.parseFloat(t[i+2]);
+			}
+			return new BinaryModel.Record(kind, null, color, step, v);
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("[MpdLoader] Malformed line in "+name+" line "+(n+1), e);
+		}
+	}
+
+
+
+	/**
+	 * Parses a "1 c x y z a b c d e f g h i part" line
+	 */
+	private static BinaryModel.Record parseReference(String name, int n, String l, int step) throws IOException {
+
+		String[] t = l.split("\\s+", 15);
+		if (t.length != 15)
+			throw new IOException("[MpdLoader] Malformed part line in "+name+" line "+(n+1));
+		try {
+			int color = Integer.decode(t[1]);
+			float[] v = new float[12];
+			for (int i=0;i<12;i++) {
+				v[i] = Float.parseFloat(t[i+2]);
+			}
+			return new BinaryModel.Record(BinaryModel.KIND_PART, t[14].trim(), color, step, v);
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("[MpdLoader] Malformed part line in "+name+" line "+(n+1), e);
+		}
+	}
+
+}
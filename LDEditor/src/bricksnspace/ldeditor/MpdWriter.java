@@ -0,0 +1,241 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawCommand;
+import bricksnspace.ldrawlib.LDrawPart;
+import bricksnspace.ldrawlib.LDrawPartType;
+
+
+/**
+ * MPD writer for model copies, safe to use outside event thread
+ * <p>
+ * Every model is written in its "0 FILE" section straight from its 
+ * primitives, in step order. File is written to a temporary file in 
+ * same directory, then moved over target, so a failed save leaves 
+ * previous file as it was.
+ *
+ */
+public final class MpdWriter {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String EOL = "\r\n";
+
+
+	private MpdWriter() { /* static only */ }
+
+
+
+	/**
+	 * Writes models as a single MPD
+	 * @param models main model first, then submodels
+	 * @param f file to write
+	 * @throws IOException on write errors, target file is unchanged
+	 */
+	public static void write(List<LDrawPart> models, File f) throws IOException {
+
+		if (models == null || f == null)
+			throw new IllegalArgumentException("[MpdWriter.write] Models and file must be not null.");
+		File dir = f.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile("ldeditor", ".tmp", dir);
+		boolean done = false;
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8), 65536);
+			try {
+				for (LDrawPart m: models) {
+					out.write("0 FILE "+m.getLdrawId()+EOL);
+					writeModel(m, out);
+					out.write("0 NOFILE"+EOL);
+				}
+			}
+			finally {
+				out.close();
+			}
+			try {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, 
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			done = true;
+		}
+		finally {
+			if (!done && !tmp.delete()) {
+				tmp.deleteOnExit();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Writes header and primitives of a model, with a STEP between steps
+	 */
+	private static void writeModel(LDrawPart m, Writer out) throws IOException {
+
+		out.write("0 "+nullToEmpty(m.getDescription())+EOL);
+		out.write("0 Name: "+m.getLdrawId()+EOL);
+		if (m.getAuthor() != null && m.getAuthor().length() > 0) {
+			out.write("0 Author: "+m.getAuthor()+EOL);
+		}
+		String org = getLdrawOrg(m.getPartType());
+		if (org != null) {
+			out.write("0 !LDRAW_ORG "+org+EOL);
+		}
+		if (m.getLicense() != null && m.getLicense().length() > 0) {
+			out.write("0 !LICENSE "+m.getLicense()+EOL);
+		}
+		out.write(EOL);
+		StringBuilder line = new StringBuilder();
+		float[] v = new float[12];
+		for (int s=0;s<=m.getNumSteps();s++) {
+			if (s > 0) {
+				out.write("0 STEP"+EOL);
+			}
+			for (LDPrimitive p: m.getPartsInStep(s)) {
+				line.setLength(0);
+				LDrawCommand t = p.getType();
+				if (t == LDrawCommand.REFERENCE) {
+					line.append("1 ");
+					appendColor(line, p.getColorIndex());
+					ContentHash.matrixValues(p.getTransformation(), v, 0);
+					for (float f: v) {
+						line.append(' ');
+						appendValue(line, f);
+					}
+					line.append(' ').append(p.getLdrawId());
+				}
+				else if (t == LDrawCommand.LINE || t == LDrawCommand.TRIANGLE 
+						|| t == LDrawCommand.QUAD || t == LDrawCommand.AUXLINE) {
+					line.append(t == LDrawCommand.LINE ? "2 " : t == LDrawCommand.TRIANGLE ? "3 " 
+							: t == LDrawCommand.QUAD ? "4 " : "5 ");
+					appendColor(line, p.getColorIndex());
+					for (float f: p.getPointsFV()) {
+						line.append(' ');
+						appendValue(line, f);
+					}
+				}
+				else if (t == LDrawCommand.META_UNKNOWN) {
+					line.append("0 ").append(p.getLdrawId());
+				}
+				else {
+					// STEP lines are written at step boundaries
+					continue;
+				}
+				out.write(line.append(EOL).toString());
+			}
+		}
+	}
+
+
+
+	private static void appendColor(StringBuilder line, int color) {
+
+		if (color >= 0x2000000) {
+			// direct color
+			line.append("0x").append(Integer.toHexString(color).toUpperCase(Locale.US));
+		}
+		else {
+			line.append(color);
+		}
+	}
+
+
+
+	/**
+	 * Appends a value with up to 5 decimals, without trailing zeros
+	 */
+	private static void appendValue(StringBuilder line, float f) {
+
+		String s = String.format(Locale.US, "%.5f", f);
+		int end = s.length();
+		while (s.charAt(end-1) == '0') {
+			end--;
+		}
+		if (s.charAt(end-1) == '.') {
+			end--;
+		}
+		s = s.substring(0, end);
+		line.append(s.equals("-0") ? "0" : s);
+	}
+
+
+
+	/**
+	 * !LDRAW_ORG value for a part type
+	 * @return value or null if type has no LDraw equivalent
+	 */
+	static String getLdrawOrg(LDrawPartType t) {
+
+		if (t == null)
+			return null;
+		switch (t) {
+		case OFFICIAL:
+			return "Part";
+		case PRIMITIVE:
+			return "Primitive";
+		case PRIMITIVE8:
+			return "8_Primitive";
+		case PRIMITIVE48:
+			return "48_Primitive";
+		case SHORTCUT:
+			return "Shortcut";
+		case UNOFFICIAL:
+			return "Unofficial_Part";
+		case UNOFF_PRIM:
+			return "Unofficial_Primitive";
+		case UNOFF8:
+			return "Unofficial_8_Primitive";
+		case UNOFF48:
+			return "Unofficial_48_Primitive";
+		case UNOFF_SHORTCUT:
+			return "Unofficial_Shortcut";
+		case MODEL:
+		case SUBMODEL:
+			return "Unofficial_Model";
+		default:
+			return null;
+		}
+	}
+
+
+
+	private static String nullToEmpty(String s) {
+
+		return s == null ? "" : s;
+	}
+
+}
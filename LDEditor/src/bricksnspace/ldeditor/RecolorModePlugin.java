@@ -21,6 +21,9 @@
 package bricksnspace.ldeditor;
 
 import java.awt.event.KeyEvent;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import bricksnspace.j3dgeom.Point3D;
@@ -76,13 +79,7 @@ public class RecolorModePlugin implements LDEditorPlugin {
 		newColorId = (Integer) params[0];
 		// two modes: if parts are already selected, recolor and enter recolor mode
 		if (editor.getSelected().size() > 0) {
-			undo.startUndoRecord();
-			for (int id : editor.getSelected()) {
-				LDPrimitive pp = editor.getPart(id).setColorIndex(newColorId);
-				undo.recordDelete(editor.addPart(pp));
-				undo.recordAdd(pp);
-			}
-			undo.endUndoRecord();
+			recolor(editor.getSelected());
 			editor.unselectAll();
 		}
 		dh.setPointerMode(PointerMode.CLIP,0x280ff80);
@@ -105,15 +102,29 @@ public class RecolorModePlugin implements LDEditorPlugin {
 	public boolean doClick(int partId, Point3D eyenear, Point3D eyeFar, PickMode mode) {
 		
 		if (partId != 0 && mode == PickMode.NONE) {
-			undo.startUndoRecord();
-			LDPrimitive pp = editor.getPart(partId).setColorIndex(newColorId);
-			undo.recordDelete(editor.addPart(pp));
-			undo.recordAdd(pp);
-			undo.endUndoRecord();
+			recolor(Collections.singleton(partId));
 		}
 		return inRecolor;
 	}
 
+	/**
+	 * Recolors parts with a single undo record
+	 */
+	private void recolor(Collection<Integer> ids) {
+		
+		List<LDPrimitive> oldParts = editor.recolorParts(ids, newColorId);
+		if (oldParts.size() == 0)
+			return;
+		undo.startUndoRecord();
+		for (LDPrimitive p: oldParts) {
+			undo.recordDelete(p);
+			undo.recordAdd(editor.getPart(p.getId()));
+		}
+		undo.endUndoRecord();
+	}
+	
+	
+	
 	@Override
 	public void doMove(int partId, Point3D eyeNear, Point3D eyeFar) {
 		/* do nothing */
@@ -133,13 +144,7 @@ public class RecolorModePlugin implements LDEditorPlugin {
 	public void doWindowSelected(Set<Integer> selected) {
 		
 		if (selected.size() > 0) {
-			undo.startUndoRecord();
-			for (int id : selected) {
-				LDPrimitive pp = editor.getPart(id).setColorIndex(newColorId);
-				undo.recordDelete(editor.addPart(pp));
-				undo.recordAdd(pp);
-			}
-			undo.endUndoRecord();
+			recolor(selected);
 			editor.unselectAll();
 		}
 	}
@@ -26,6 +26,8 @@ import java.awt.Container;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 
@@ -45,11 +47,16 @@ import bricksnspace.ldraw3d.DrawHelpers.PointerMode;
 import bricksnspace.ldrawlib.ConnectionHandler;
 import bricksnspace.ldrawlib.ConnectionPoint;
 import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawColor;
+import bricksnspace.ldrawlib.LDrawPart;
 import bricksnspace.simpleundo.Undo;
 
 
 /**
  * Rotate part or blocks around a connection point
+ * <p>
+ * If rotation point is on a selected part, whole selection rotates 
+ * as a group around that point
  * 
  * @author Mario Pascucci
  *
@@ -72,6 +79,10 @@ public class RotatePartModePlugin implements LDEditorPlugin, ActionListener {
 	private JLabel angleLabel;
 	boolean startRotation = false;
 	boolean inRotation = false; 
+	// selected parts rotating as a group, null if rotating a single part
+	List<LDPrimitive> groupParts = null;
+	MovingPart groupPreview = null;
+	private static final String rotatingPartName = "__internal_rotating__";
 
 	
 	
@@ -119,9 +130,18 @@ public class RotatePartModePlugin implements LDEditorPlugin, ActionListener {
 			dh.removeRotGadgets();
 			startRotation = false;
 			inRotation = false;
-			display.delRenderedPart(rotatePoint.getPartId());
-			LDPrimitive p = editor.getPart(rotatePoint.getPartId());
-			display.addRenderedPart(LDRenderedPart.newRenderedPart(p));
+			if (groupParts != null) {
+				display.delRenderedPart(groupPreview.getId());
+				// parts are still in place
+				editor.endDragging();
+				groupParts = null;
+				groupPreview = null;
+			}
+			else {
+				display.delRenderedPart(rotatePoint.getPartId());
+				LDPrimitive p = editor.getPart(rotatePoint.getPartId());
+				display.addRenderedPart(LDRenderedPart.newRenderedPart(p));
+			}
 			rotatePoint = null;
 			toolPanel.removeAll();
 			for (Component c:savedComponents)
@@ -150,6 +170,7 @@ public class RotatePartModePlugin implements LDEditorPlugin, ActionListener {
 			startRotation = false;
 			display.addGadget(dh.getRotationHandle(eyeNear, eyeFar));
 			display.disableHover();
+			startGroup();
 			savedComponents = toolPanel.getComponents();
 			toolPanel.removeAll();
 			toolPanel.add(angleLabel);
@@ -163,13 +184,7 @@ public class RotatePartModePlugin implements LDEditorPlugin, ActionListener {
 			inRotation = false;
 			startRotation = false;
 			dh.removeRotGadgets();
-			display.delRenderedPart(rotatePoint.getPartId());
-			LDPrimitive p = editor.getPart(rotatePoint.getPartId());
-			undo.startUndoRecord();
-			p = p.transform(dh.getRotMatrix(rotatePoint));
-			undo.recordDelete(editor.addPart(p));
-			undo.recordAdd(p);
-			undo.endUndoRecord();
+			endRotation(dh.getRotMatrix(rotatePoint));
 			toolPanel.remove(angleLabel);
 			toolPanel.remove(angleEntry);
 			for (Component c: savedComponents)
@@ -186,6 +201,70 @@ public class RotatePartModePlugin implements LDEditorPlugin, ActionListener {
 	
 	
 	
+	/**
+	 * If rotation point is on a selected part, prepares selection to rotate as a group
+	 */
+	private void startGroup() {
+		
+		Set<Integer> selected = editor.getSelected();
+		if (selected.size() < 2 || !selected.contains(rotatePoint.getPartId())) {
+			groupParts = null;
+			return;
+		}
+		groupParts = new ArrayList<LDPrimitive>(selected.size());
+		for (int id: selected) {
+			groupParts.add(editor.getPart(id));
+		}
+		// preview block centered on rotation point
+		LDrawPart block = LDrawPart.newInternalUsePart(rotatingPartName);
+		Point3D pivot = rotatePoint.getP1();
+		Matrix3D origin = new Matrix3D().moveTo(-pivot.x, -pivot.y, -pivot.z);
+		for (LDPrimitive p: groupParts) {
+			block.addPart(p.transform(origin));
+		}
+		editor.startDragging(groupParts);
+		groupPreview = new MovingPart(LDPrimitive.newGlobalPart(rotatingPartName, LDrawColor.CURRENT, new Matrix3D()));
+		display.addRenderedPart(groupPreview.fastMove(pivot));
+	}
+	
+	
+	
+	/**
+	 * Applies rotation to part or group, with a single undo record
+	 * @param t rotation matrix, in model coordinates
+	 */
+	private void endRotation(Matrix3D t) {
+		
+		if (groupParts != null) {
+			display.delRenderedPart(groupPreview.getId());
+			List<LDPrimitive> rotated = new ArrayList<LDPrimitive>(groupParts.size());
+			undo.startUndoRecord();
+			for (LDPrimitive p: groupParts) {
+				LDPrimitive np = p.transform(t);
+				rotated.add(np);
+				undo.recordDelete(p);
+				undo.recordAdd(np);
+			}
+			undo.endUndoRecord();
+			// parts keep their ids, only their connections are updated
+			editor.replaceParts(rotated);
+			editor.endDragging();
+			groupParts = null;
+			groupPreview = null;
+		}
+		else {
+			display.delRenderedPart(rotatePoint.getPartId());
+			LDPrimitive p = editor.getPart(rotatePoint.getPartId());
+			undo.startUndoRecord();
+			p = p.transform(t);
+			undo.recordDelete(editor.addPart(p));
+			undo.recordAdd(p);
+			undo.endUndoRecord();
+		}
+	}
+	
+	
+	
 	@Override
 	public void doMove(int partId, Point3D eyeNear, Point3D eyeFar) {
 		
@@ -197,10 +276,17 @@ public class RotatePartModePlugin implements LDEditorPlugin, ActionListener {
 		}
 		else if (inRotation) {
 			display.addGadget(dh.getRotationHandle(eyeFar, eyeNear));
-			display.delRenderedPart(rotatePoint.getPartId());
-			LDPrimitive p = editor.getPart(rotatePoint.getPartId()).getClone();
-			p = p.transform(dh.getRotMatrix(rotatePoint));
-			display.addRenderedPart(LDRenderedPart.newRenderedPart(p));
+			if (groupParts != null) {
+				// group preview is centered on rotation point
+				groupPreview.setTransform(dh.getRotMatrix(rotatePoint).getOnlyRotation());
+				display.addRenderedPart(groupPreview.fastMove(rotatePoint.getP1()));
+			}
+			else {
+				display.delRenderedPart(rotatePoint.getPartId());
+				LDPrimitive p = editor.getPart(rotatePoint.getPartId()).getClone();
+				p = p.transform(dh.getRotMatrix(rotatePoint));
+				display.addRenderedPart(LDRenderedPart.newRenderedPart(p));
+			}
 			angleEntry.setText(String.format(Locale.US,	"%.1f",dh.getRotAngle()*180/Math.PI));
 		}
 	}
@@ -255,16 +341,9 @@ public class RotatePartModePlugin implements LDEditorPlugin, ActionListener {
 					inRotation = false;
 					startRotation = false;
 					dh.removeRotGadgets();
-					display.delRenderedPart(rotatePoint.getPartId());
-					LDPrimitive p = editor.getPart(rotatePoint.getPartId());
-					undo.startUndoRecord();
-					p = p.transform(
-							new Matrix3D(-rotatePoint.getP1().x, -rotatePoint.getP1().y, -rotatePoint.getP1().z)
+					endRotation(new Matrix3D(-rotatePoint.getP1().x, -rotatePoint.getP1().y, -rotatePoint.getP1().z)
 							.transform(JSimpleGeom.axisRotMatrix(rotatePoint.getP1(), rotatePoint.getP2(), a))
 							.moveTo(rotatePoint.getP1()));
-					undo.recordAdd(p);
-					undo.recordDelete(editor.addPart(p));
-					undo.endUndoRecord();
 					//gldisplay.addRenderedPart(LDRenderedPart.newRenderedPart(p));
 					toolPanel.remove(angleLabel);
 					toolPanel.remove(angleEntry);
@@ -0,0 +1,46 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Callbacks for background model save, called in event thread
+ *
+ */
+public interface SaveListener {
+
+	/**
+	 * Notify save ended without errors
+	 * @param f saved file
+	 */
+	void saveCompleted(File f);
+	
+	
+	/**
+	 * Notify save failed, model isn't marked as saved
+	 * @param f file that was saving
+	 * @param e error
+	 */
+	void saveFailed(File f, IOException e);
+}
@@ -0,0 +1,302 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import bricksnspace.ldrawlib.LDPrimitive;
+import bricksnspace.ldrawlib.LDrawCommand;
+
+
+/**
+ * Software step renderer, needs only Java2D
+ * <p>
+ * Draws a simplified isometric view: every part is a box placed with
+ * part transformation, lines and polygons are drawn as they are.
+ * Parts in current step are in evidence, parts from previous steps are grey.
+ * Works in headless environments.
+ *
+ */
+public class SoftwareStepRenderer implements StepRenderer {
+
+	// box used for every part, half sizes in LDU
+	private static final float BOX_X = 10;
+	private static final float BOX_Y = 12;
+	private static final float BOX_Z = 10;
+	// box corners, as offsets from part origin
+	private static final float[][] CORNERS = {
+		{-BOX_X,-BOX_Y,-BOX_Z},{BOX_X,-BOX_Y,-BOX_Z},{BOX_X,-BOX_Y,BOX_Z},{-BOX_X,-BOX_Y,BOX_Z},
+		{-BOX_X,BOX_Y,-BOX_Z},{BOX_X,BOX_Y,-BOX_Z},{BOX_X,BOX_Y,BOX_Z},{-BOX_X,BOX_Y,BOX_Z}
+	};
+	// box faces, corner indexes
+	private static final int[][] FACES = {
+		{0,1,2,3},{7,6,5,4},{0,4,5,1},{1,5,6,2},{2,6,7,3},{3,7,4,0}
+	};
+	// view angles
+	private static final double YAW = Math.PI/4;
+	private static final double PITCH = Math.PI/6;
+	private static final int MARGIN = 4;
+
+	private Color background = Color.WHITE;
+	private Color previousColor = new Color(190,190,190);
+	private Color currentColor = new Color(255,180,0);
+	private Color edgeColor = new Color(64,64,64);
+
+
+
+	public Color getBackground() {
+		return background;
+	}
+
+
+	public void setBackground(Color background) {
+		if (background == null)
+			throw new IllegalArgumentException("[SoftwareStepRenderer.setBackground] Color must be not null.");
+		this.background = background;
+	}
+
+
+	public Color getCurrentColor() {
+		return currentColor;
+	}
+
+
+	/**
+	 * Sets color for parts in rendered step
+	 */
+	public void setCurrentColor(Color currentColor) {
+		if (currentColor == null)
+			throw new IllegalArgumentException("[SoftwareStepRenderer.setCurrentColor] Color must be not null.");
+		this.currentColor = currentColor;
+	}
+
+
+	public Color getPreviousColor() {
+		return previousColor;
+	}
+
+
+	/**
+	 * Sets color for parts in steps before rendered one
+	 */
+	public void setPreviousColor(Color previousColor) {
+		if (previousColor == null)
+			throw new IllegalArgumentException("[SoftwareStepRenderer.setPreviousColor] Color must be not null.");
+		this.previousColor = previousColor;
+	}
+
+
+
+	/**
+	 * A projected shape: polygon or polyline with its depth
+	 */
+	private static class Shape2D {
+
+		final float[] xy;
+		final float depth;
+		final boolean closed;
+		final Color color;
+
+		Shape2D(float[] xy, float depth, boolean closed, Color color) {
+			this.xy = xy;
+			this.depth = depth;
+			this.closed = closed;
+			this.color = color;
+		}
+	}
+
+
+
+	@Override
+	public BufferedImage renderStep(List<LDPrimitive> previous, List<LDPrimitive> current, 
+			int width, int height) {
+
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("[SoftwareStepRenderer.renderStep] Image size must be greater than 0.");
+		List<Shape2D> shapes = new ArrayList<Shape2D>();
+		for (LDPrimitive p: previous) {
+			addShapes(shapes, p, previousColor);
+		}
+		for (LDPrimitive p: current) {
+			addShapes(shapes, p, currentColor);
+		}
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		try {
+			g.setColor(background);
+			g.fillRect(0, 0, width, height);
+			if (shapes.size() == 0)
+				return img;
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setStroke(new BasicStroke(0.5f));
+			// fit whole model in image
+			float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+			float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+			for (Shape2D s: shapes) {
+				for (int i=0;i<s.xy.length;i+=2) {
+					minX = Math.min(minX, s.xy[i]);
+					maxX = Math.max(maxX, s.xy[i]);
+					minY = Math.min(minY, s.xy[i+1]);
+					maxY = Math.max(maxY, s.xy[i+1]);
+				}
+			}
+			float scale = Math.min((width-2*MARGIN)/Math.max(1, maxX-minX), 
+					(height-2*MARGIN)/Math.max(1, maxY-minY));
+			float ox = (width - (maxX-minX)*scale)/2 - minX*scale;
+			float oy = (height - (maxY-minY)*scale)/2 - minY*scale;
+			// painter's algorithm, farthest first
+			Collections.sort(shapes, new Comparator<Shape2D>() {
+
+				@Override
+				public int compare(Shape2D a, Shape2D b) {
+					return Float.compare(b.depth, a.depth);
+				}
+			});
+			for (Shape2D s: shapes) {
+				Path2D.Float path = new Path2D.Float();
+				path.moveTo(s.xy[0]*scale+ox, s.xy[1]*scale+oy);
+				for (int i=2;i<s.xy.length;i+=2) {
+					path.lineTo(s.xy[i]*scale+ox, s.xy[i+1]*scale+oy);
+				}
+				if (s.closed) {
+					path.closePath();
+					g.setColor(s.color);
+					g.fill(path);
+					g.setColor(edgeColor);
+				}
+				else {
+					g.setColor(s.color.darker());
+				}
+				g.draw(path);
+			}
+		}
+		finally {
+			g.dispose();
+		}
+		return img;
+	}
+
+
+
+	/**
+	 * Projects a primitive to shapes
+	 */
+	private static void addShapes(List<Shape2D> shapes, LDPrimitive p, Color color) {
+
+		if (!p.isDrawable())
+			return;
+		LDrawCommand t = p.getType();
+		if (t == LDrawCommand.REFERENCE) {
+			float[] pts = new float[CORNERS.length*3];
+			for (int i=0;i<CORNERS.length;i++) {
+				float[] v = p.getTransformation().transformPoint(CORNERS[i][0], CORNERS[i][1], CORNERS[i][2]);
+				pts[i*3] = v[0];
+				pts[i*3+1] = v[1];
+				pts[i*3+2] = v[2];
+			}
+			float[] proj = project(pts);
+			for (int[] f: FACES) {
+				float[] xy = new float[8];
+				float depth = 0;
+				for (int i=0;i<4;i++) {
+					xy[i*2] = proj[f[i]*3];
+					xy[i*2+1] = proj[f[i]*3+1];
+					depth += proj[f[i]*3+2];
+				}
+				// box is convex: back faces are farther and get covered by front ones
+				// flat shading, faces facing up are brighter
+				float light = faceLight(pts, f);
+				shapes.add(new Shape2D(xy, depth/4, true, shade(color, light)));
+			}
+		}
+		else if (t == LDrawCommand.LINE || t == LDrawCommand.AUXLINE 
+				|| t == LDrawCommand.TRIANGLE || t == LDrawCommand.QUAD) {
+			float[] proj = project(p.getPointsFV());
+			int n = proj.length / 3;
+			float[] xy = new float[n*2];
+			float depth = 0;
+			for (int i=0;i<n;i++) {
+				xy[i*2] = proj[i*3];
+				xy[i*2+1] = proj[i*3+1];
+				depth += proj[i*3+2];
+			}
+			shapes.add(new Shape2D(xy, depth/n, t == LDrawCommand.TRIANGLE || t == LDrawCommand.QUAD, color));
+		}
+	}
+
+
+
+	/**
+	 * Isometric-like projection, LDraw -Y is up
+	 * @param pts x y z triplets
+	 * @return screen x, screen y and depth triplets
+	 */
+	private static float[] project(float[] pts) {
+
+		float cy = (float) Math.cos(YAW), sy = (float) Math.sin(YAW);
+		float cp = (float) Math.cos(PITCH), sp = (float) Math.sin(PITCH);
+		float[] res = new float[pts.length];
+		for (int i=0;i<pts.length;i+=3) {
+			float rx = pts[i]*cy - pts[i+2]*sy;
+			float rz = pts[i]*sy + pts[i+2]*cy;
+			res[i] = rx;
+			res[i+1] = pts[i+1]*cp - rz*sp;
+			res[i+2] = rz*cp + pts[i+1]*sp;
+		}
+		return res;
+	}
+
+
+
+	/**
+	 * Light for a face, from face normal
+	 */
+	private static float faceLight(float[] pts, int[] f) {
+
+		float ax = pts[f[1]*3]-pts[f[0]*3], ay = pts[f[1]*3+1]-pts[f[0]*3+1], az = pts[f[1]*3+2]-pts[f[0]*3+2];
+		float bx = pts[f[3]*3]-pts[f[0]*3], by = pts[f[3]*3+1]-pts[f[0]*3+1], bz = pts[f[3]*3+2]-pts[f[0]*3+2];
+		float nx = ay*bz-az*by, ny = az*bx-ax*bz, nz = ax*by-ay*bx;
+		float l = (float) Math.sqrt(nx*nx+ny*ny+nz*nz);
+		if (l == 0)
+			return 0.8f;
+		// -Y is up
+		return 0.7f + 0.3f * Math.abs(ny/l);
+	}
+
+
+
+	private static Color shade(Color c, float light) {
+
+		return new Color(Math.min(255, (int) (c.getRed()*light)), 
+				Math.min(255, (int) (c.getGreen()*light)), 
+				Math.min(255, (int) (c.getBlue()*light)));
+	}
+
+}
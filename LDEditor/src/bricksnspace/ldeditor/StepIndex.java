@@ -0,0 +1,239 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Index of building steps: step for every part and parts in every step
+ * <p>
+ * Every step keeps a compact list of part ids. A part is removed from its
+ * step swapping it with last one, so add, remove and move are O(1), and
+ * listing parts costs only the number of parts returned.
+ * Order of parts inside a step is not kept.
+ *
+ */
+public class StepIndex {
+
+
+	// part id -> step
+	private final Map<Integer,Integer> stepOf = new HashMap<Integer, Integer>();
+	// part id -> position in step list
+	private final Map<Integer,Integer> posOf = new HashMap<Integer, Integer>();
+	// step -> part ids, first "size" places are used
+	private final List<int[]> stepIds = new ArrayList<int[]>();
+	private final List<Integer> stepSize = new ArrayList<Integer>();
+	// parts in all steps
+	private int total = 0;
+
+
+
+	/**
+	 * Adds a part to a step
+	 * @param id part global id
+	 * @param step step number, 0 or greater
+	 */
+	public void add(int id, int step) {
+
+		if (step < 0)
+			throw new IllegalArgumentException("[StepIndex.add] Step must be 0 or greater.");
+		if (stepOf.containsKey(id)) {
+			move(id, step);
+			return;
+		}
+		while (stepIds.size() <= step) {
+			stepIds.add(new int[8]);
+			stepSize.add(0);
+		}
+		int[] ids = stepIds.get(step);
+		int size = stepSize.get(step);
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size*2);
+			stepIds.set(step, ids);
+		}
+		ids[size] = id;
+		stepSize.set(step, size+1);
+		stepOf.put(id, step);
+		posOf.put(id, size);
+		total++;
+	}
+
+
+
+	/**
+	 * Removes a part from index
+	 * @param id part global id
+	 * @return true if part was in index
+	 */
+	public boolean remove(int id) {
+
+		Integer step = stepOf.remove(id);
+		if (step == null)
+			return false;
+		int pos = posOf.remove(id);
+		int[] ids = stepIds.get(step);
+		int last = stepSize.get(step) - 1;
+		if (pos != last) {
+			// last part takes place of removed one
+			ids[pos] = ids[last];
+			posOf.put(ids[pos], pos);
+		}
+		stepSize.set(step, last);
+		total--;
+		return true;
+	}
+
+
+
+	/**
+	 * Moves a part to another step
+	 * @param id part global id
+	 * @param step new step
+	 */
+	public void move(int id, int step) {
+
+		Integer s = stepOf.get(id);
+		if (s != null && s == step)
+			return;
+		remove(id);
+		add(id, step);
+	}
+
+
+
+	/**
+	 * Step of a part
+	 * @param id part global id
+	 * @return step or -1 if part isn't in index
+	 */
+	public int getStep(int id) {
+
+		Integer s = stepOf.get(id);
+		return s == null ? -1 : s;
+	}
+
+
+
+	/**
+	 * Number of parts in a step
+	 */
+	public int count(int step) {
+
+		if (step < 0 || step >= stepSize.size())
+			return 0;
+		return stepSize.get(step);
+	}
+
+
+
+	/**
+	 * Number of parts in steps after a step
+	 */
+	public int countAfter(int step) {
+
+		int c = total;
+		for (int i=0;i<=step && i<stepSize.size();i++) {
+			c -= stepSize.get(i);
+		}
+		return c;
+	}
+
+
+
+	/**
+	 * Ids of parts in a step
+	 * @return a new array with part ids
+	 */
+	public int[] getIds(int step) {
+
+		if (step < 0 || step >= stepIds.size())
+			return new int[0];
+		return Arrays.copyOf(stepIds.get(step), stepSize.get(step));
+	}
+
+
+
+	/**
+	 * Ids of parts in all steps after a step
+	 * @return a new array with part ids
+	 */
+	public int[] getIdsAfter(int step) {
+
+		int[] res = new int[countAfter(step)];
+		int n = 0;
+		for (int i=Math.max(0, step+1);i<stepIds.size();i++) {
+			int size = stepSize.get(i);
+			System.arraycopy(stepIds.get(i), 0, res, n, size);
+			n += size;
+		}
+		return res;
+	}
+
+
+
+	/**
+	 * Highest step with at least one part, or -1 if index is empty
+	 */
+	public int getLastStep() {
+
+		for (int i=stepSize.size()-1;i>=0;i--) {
+			if (stepSize.get(i) > 0)
+				return i;
+		}
+		return -1;
+	}
+
+
+
+	/**
+	 * Independent copy of index, can be read in another thread
+	 * while this one changes
+	 */
+	public StepIndex copy() {
+
+		StepIndex c = new StepIndex();
+		c.stepOf.putAll(stepOf);
+		c.posOf.putAll(posOf);
+		for (int i=0;i<stepIds.size();i++) {
+			c.stepIds.add(Arrays.copyOf(stepIds.get(i), Math.max(8, stepSize.get(i))));
+			c.stepSize.add(stepSize.get(i));
+		}
+		c.total = total;
+		return c;
+	}
+
+
+
+	public void clear() {
+
+		stepOf.clear();
+		posOf.clear();
+		stepIds.clear();
+		stepSize.clear();
+		total = 0;
+	}
+
+}
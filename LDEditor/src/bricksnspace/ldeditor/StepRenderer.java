@@ -0,0 +1,47 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Offscreen renderer for building step images
+ * <p>
+ * Renderer is called from background threads, with its own copy of
+ * parts lists, so it must not use Swing or the editor display.
+ *
+ */
+public interface StepRenderer {
+
+	/**
+	 * Renders a step image
+	 * @param previous parts placed in steps before this one
+	 * @param current parts placed in this step
+	 * @param width image width in pixel
+	 * @param height image height in pixel
+	 * @return rendered image
+	 */
+	BufferedImage renderStep(List<LDPrimitive> previous, List<LDPrimitive> current, int width, int height);
+}
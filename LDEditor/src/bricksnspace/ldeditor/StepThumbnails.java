@@ -0,0 +1,337 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDEditor
+
+	LDEditor is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDEditor is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDEditor.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldeditor;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+import bricksnspace.ldrawlib.LDPrimitive;
+
+
+/**
+ * Step thumbnails, rendered in background and kept in a size-bounded cache
+ * <p>
+ * Model is read only in {@link #update(LDEditor)}, called from event thread,
+ * that only copies part lists of every step. Keys are computed in background:
+ * every step gets a key from its parts and from key of previous step, 
+ * so a thumbnail is rendered again only if parts in its step, or in 
+ * steps before it, are changed.
+ * <p>
+ * When cache is full least recently used thumbnails are dropped, and 
+ * rendered again on request.
+ *
+ */
+public class StepThumbnails {
+
+	/**
+	 * Callback for rendered thumbnails, called in event thread
+	 */
+	public interface ThumbnailListener {
+		
+		void thumbnailReady(int step, BufferedImage thumbnail);
+	}
+	
+	
+	
+	/**
+	 * Cached image with key of step content it was rendered from
+	 */
+	private static class Thumbnail {
+		
+		final String key;
+		final BufferedImage image;
+		
+		Thumbnail(String key, BufferedImage image) {
+			this.key = key;
+			this.image = image;
+		}
+	}
+	
+	
+	
+	private final StepRenderer renderer;
+	private final int width;
+	private final int height;
+	private final ExecutorService workers;
+	// least recently used first
+	private final Map<Integer,Thumbnail> cache;
+	// step -> key of render in progress
+	private final ConcurrentMap<Integer,String> pending = new ConcurrentHashMap<Integer, String>();
+	// last model snapshot, replaced as a whole by update()
+	private volatile String[] stepKeys = new String[0];
+	private volatile List<List<LDPrimitive>> stepParts = Collections.emptyList();
+	// last requested update, guarded by cache lock
+	private int generation = 0;
+	private ThumbnailListener listener = null;
+	
+	
+	
+	/**
+	 * @param renderer renderer to use, called from background threads
+	 * @param width thumbnail width
+	 * @param height thumbnail height
+	 * @param maxCached max thumbnails kept in cache
+	 */
+	public StepThumbnails(StepRenderer renderer, int width, int height, final int maxCached) {
+		
+		if (renderer == null)
+			throw new IllegalArgumentException("[StepThumbnails] Renderer must be not null.");
+		if (width < 1 || height < 1 || maxCached < 1)
+			throw new IllegalArgumentException("[StepThumbnails] Size and cache size must be greater than 0.");
+		this.renderer = renderer;
+		this.width = width;
+		this.height = height;
+		cache = new LinkedHashMap<Integer, Thumbnail>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Thumbnail> eldest) {
+				return size() > maxCached;
+			}
+		};
+		workers = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()-1),
+				new ThreadFactory() {
+					
+					@Override
+					public Thread newThread(Runnable r) {
+						
+						Thread t = new Thread(r, "StepThumbnail");
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+	}
+	
+	
+	
+	public void setListener(ThumbnailListener l) {
+		listener = l;
+	}
+	
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	
+	
+	/**
+	 * Reads steps from editor and renders again only changed steps.
+	 * <p>
+	 * Must be called in event thread, after model changes. Only part 
+	 * lists are copied here, changed steps are found in background.
+	 * @param editor editor with model to render
+	 */
+	public void update(LDEditor editor) {
+		
+		if (editor == null)
+			throw new IllegalArgumentException("[StepThumbnails.update] Editor must be not null.");
+		if (workers.isShutdown())
+			return;
+		int steps = editor.getNumSteps() + 1;
+		List<List<LDPrimitive>> copy = new ArrayList<List<LDPrimitive>>(steps);
+		for (int s=0;s<steps;s++) {
+			copy.add(Collections.unmodifiableList(new ArrayList<LDPrimitive>(editor.getPartsInStep(s))));
+		}
+		final List<List<LDPrimitive>> parts = Collections.unmodifiableList(copy);
+		final int gen;
+		synchronized (cache) {
+			gen = ++generation;
+		}
+		workers.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				try {
+					updateKeys(parts, gen);
+				}
+				catch (RuntimeException e) {
+					Logger.getGlobal().log(Level.WARNING, "[StepThumbnails] Unable to update steps", e);
+				}
+			}
+		});
+	}
+	
+	
+	
+	/**
+	 * Computes step keys, then drops and renders again changed steps.
+	 * Runs in background, result is discarded if a newer update is requested.
+	 */
+	private void updateKeys(List<List<LDPrimitive>> parts, int gen) {
+		
+		int steps = parts.size();
+		String[] keys = new String[steps];
+		String prev = "";
+		for (int s=0;s<steps;s++) {
+			List<LDPrimitive> inStep = parts.get(s);
+			List<String> pk = new ArrayList<String>(inStep.size()+1);
+			pk.add(prev);
+			for (LDPrimitive p: inStep) {
+				pk.add(ContentHash.primitiveKey(p));
+			}
+			keys[s] = ContentHash.digest(pk);
+			prev = keys[s];
+		}
+		String[] oldKeys;
+		synchronized (cache) {
+			if (gen != generation)
+				return;
+			oldKeys = stepKeys;
+			stepParts = parts;
+			stepKeys = keys;
+			// removed steps
+			for (int s=steps;s<oldKeys.length;s++) {
+				cache.remove(s);
+			}
+			for (int s=0;s<steps;s++) {
+				if (s >= oldKeys.length || !keys[s].equals(oldKeys[s])) {
+					cache.remove(s);
+				}
+			}
+		}
+		for (int s=0;s<steps;s++) {
+			if (s < oldKeys.length && keys[s].equals(oldKeys[s]))
+				continue;
+			schedule(s, keys[s]);
+		}
+	}
+	
+	
+	
+	/**
+	 * Thumbnail for a step
+	 * <p>
+	 * If thumbnail isn't ready it is rendered in background and 
+	 * listener gets it when done
+	 * @param step step number
+	 * @return thumbnail or null if not yet rendered
+	 */
+	public BufferedImage getThumbnail(int step) {
+		
+		String[] keys = stepKeys;
+		if (step < 0 || step >= keys.length)
+			return null;
+		synchronized (cache) {
+			Thumbnail t = cache.get(step);
+			if (t != null && t.key.equals(keys[step]))
+				return t.image;
+		}
+		// evicted from cache
+		schedule(step, keys[step]);
+		return null;
+	}
+	
+	
+	
+	/**
+	 * Drops all thumbnails and stops rendering
+	 */
+	public void dispose() {
+		
+		workers.shutdownNow();
+		synchronized (cache) {
+			cache.clear();
+		}
+		pending.clear();
+	}
+	
+	
+	
+	private void schedule(final int step, final String key) {
+		
+		if (workers.isShutdown())
+			// disposed
+			return;
+		if (key.equals(pending.put(step, key)))
+			// same render already queued
+			return;
+		final List<List<LDPrimitive>> parts = stepParts;
+		Runnable render = new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				try {
+					if (!key.equals(pending.get(step)))
+						// superseded
+						return;
+					List<LDPrimitive> previous = new ArrayList<LDPrimitive>();
+					for (int s=0;s<step;s++) {
+						previous.addAll(parts.get(s));
+					}
+					final BufferedImage img = renderer.renderStep(previous, parts.get(step), width, height);
+					String[] keys = stepKeys;
+					if (step >= keys.length || !key.equals(keys[step]))
+						return;
+					synchronized (cache) {
+						cache.put(step, new Thumbnail(key, img));
+					}
+					SwingUtilities.invokeLater(new Runnable() {
+						
+						@Override
+						public void run() {
+							if (listener != null) {
+								listener.thumbnailReady(step, img);
+							}
+						}
+					});
+				}
+				catch (RuntimeException e) {
+					Logger.getGlobal().log(Level.WARNING, "[StepThumbnails] Unable to render step "+step, e);
+				}
+				finally {
+					pending.remove(step, key);
+				}
+			}
+		};
+		try {
+			workers.execute(render);
+		}
+		catch (RejectedExecutionException e) {
+			// disposed meanwhile
+			pending.remove(step, key);
+		}
+	}
+	
+}